@@ -0,0 +1,24 @@
+-- Schema of the repository cache at version 11, as created by RepoDb.onCreate()
+CREATE TABLE repositories (_id INTEGER PRIMARY KEY AUTOINCREMENT,url TEXT NOT NULL, title TEXT, partial_url TEXT, version TEXT, UNIQUE (url) ON CONFLICT REPLACE);
+CREATE TABLE modules (_id INTEGER PRIMARY KEY AUTOINCREMENT,repo_id INTEGER NOT NULL REFERENCES repositories ON DELETE CASCADE, pkgname TEXT NOT NULL, title TEXT NOT NULL, summary TEXT, description TEXT, description_is_html INTEGER DEFAULT 0, author TEXT, support TEXT, created INTEGER DEFAULT -1, updated INTEGER DEFAULT -1, preferred INTEGER DEFAULT 1, latest_version_id INTEGER REFERENCES module_versions DEFERRABLE INITIALLY DEFERRED, content_hash BLOB, UNIQUE (pkgname, repo_id) ON CONFLICT REPLACE);
+CREATE TABLE module_versions (_id INTEGER PRIMARY KEY AUTOINCREMENT,module_id INTEGER NOT NULL REFERENCES modules ON DELETE CASCADE, name TEXT NOT NULL, code INTEGER NOT NULL, download_link TEXT, md5sum TEXT, changelog TEXT, changelog_is_html INTEGER DEFAULT 0, reltype INTEGER DEFAULT 0, uploaded INTEGER DEFAULT -1);
+CREATE INDEX module_versions_latest_idx ON module_versions (module_id, code DESC, reltype);
+CREATE TABLE more_info (_id INTEGER PRIMARY KEY AUTOINCREMENT,module_id INTEGER NOT NULL REFERENCES modules ON DELETE CASCADE, label TEXT NOT NULL, value TEXT);
+CREATE VIRTUAL TABLE modules_fts USING fts4(title, summary, description, author);
+CREATE TRIGGER modules_fts_delete AFTER DELETE ON modules BEGIN DELETE FROM modules_fts WHERE docid = old._id; END;
+CREATE TABLE package_snapshot (pkgname TEXT PRIMARY KEY ON CONFLICT REPLACE, version_code INTEGER NOT NULL, last_update_time INTEGER NOT NULL, enabled INTEGER NOT NULL, is_module INTEGER NOT NULL);
+CREATE TABLE installed_modules (pkgname TEXT PRIMARY KEY ON CONFLICT REPLACE, version_code INTEGER NOT NULL, version_name TEXT);
+CREATE TABLE module_overview (_id INTEGER PRIMARY KEY, pkgname TEXT NOT NULL, title TEXT NOT NULL, summary TEXT, created INTEGER DEFAULT -1, updated INTEGER DEFAULT -1, latest_version TEXT, installed_version TEXT, is_framework INTEGER NOT NULL, is_installed INTEGER NOT NULL, has_update INTEGER NOT NULL, status_rank INTEGER NOT NULL);
+CREATE INDEX module_overview_status_idx ON module_overview (status_rank DESC, title COLLATE NOCASE, pkgname);
+CREATE INDEX module_overview_created_idx ON module_overview (created DESC, status_rank DESC, title COLLATE NOCASE, pkgname);
+CREATE INDEX module_overview_updated_idx ON module_overview (updated DESC, status_rank DESC, title COLLATE NOCASE, pkgname);
+CREATE TRIGGER module_overview_modules_insert AFTER INSERT ON modules BEGIN INSERT OR REPLACE INTO module_overview SELECT *, is_framework * 4 + has_update * 2 + is_installed FROM (SELECT m._id, m.pkgname, m.title, m.summary, m.created, m.updated, v.name, i.version_name, (CASE WHEN m.pkgname = 'de.ursa.android.gomxpf.installer' THEN 1 ELSE 0 END) AS is_framework, (CASE WHEN i.version_name IS NOT NULL THEN 1 ELSE 0 END) AS is_installed, (CASE WHEN v.code > i.version_code THEN 1 ELSE 0 END) AS has_update FROM modules AS m LEFT JOIN module_versions AS v ON v._id = m.latest_version_id LEFT JOIN installed_modules AS i ON i.pkgname = m.pkgname WHERE m.preferred = 1 AND m._id = new._id); END;
+CREATE TRIGGER module_overview_modules_update AFTER UPDATE ON modules WHEN new.pkgname IS NOT old.pkgname OR new.title IS NOT old.title OR new.summary IS NOT old.summary OR new.created IS NOT old.created OR new.updated IS NOT old.updated OR new.preferred IS NOT old.preferred OR new.latest_version_id IS NOT old.latest_version_id BEGIN DELETE FROM module_overview WHERE _id = old._id; INSERT OR REPLACE INTO module_overview SELECT *, is_framework * 4 + has_update * 2 + is_installed FROM (SELECT m._id, m.pkgname, m.title, m.summary, m.created, m.updated, v.name, i.version_name, (CASE WHEN m.pkgname = 'de.ursa.android.gomxpf.installer' THEN 1 ELSE 0 END) AS is_framework, (CASE WHEN i.version_name IS NOT NULL THEN 1 ELSE 0 END) AS is_installed, (CASE WHEN v.code > i.version_code THEN 1 ELSE 0 END) AS has_update FROM modules AS m LEFT JOIN module_versions AS v ON v._id = m.latest_version_id LEFT JOIN installed_modules AS i ON i.pkgname = m.pkgname WHERE m.preferred = 1 AND m._id = new._id); END;
+CREATE TRIGGER module_overview_modules_delete AFTER DELETE ON modules BEGIN DELETE FROM module_overview WHERE _id = old._id; END;
+CREATE TRIGGER module_overview_versions_insert AFTER INSERT ON module_versions BEGIN INSERT OR REPLACE INTO module_overview SELECT *, is_framework * 4 + has_update * 2 + is_installed FROM (SELECT m._id, m.pkgname, m.title, m.summary, m.created, m.updated, v.name, i.version_name, (CASE WHEN m.pkgname = 'de.ursa.android.gomxpf.installer' THEN 1 ELSE 0 END) AS is_framework, (CASE WHEN i.version_name IS NOT NULL THEN 1 ELSE 0 END) AS is_installed, (CASE WHEN v.code > i.version_code THEN 1 ELSE 0 END) AS has_update FROM modules AS m LEFT JOIN module_versions AS v ON v._id = m.latest_version_id LEFT JOIN installed_modules AS i ON i.pkgname = m.pkgname WHERE m.preferred = 1 AND m._id = new.module_id AND m.latest_version_id = new._id); END;
+CREATE TRIGGER module_overview_installed_insert AFTER INSERT ON installed_modules BEGIN INSERT OR REPLACE INTO module_overview SELECT *, is_framework * 4 + has_update * 2 + is_installed FROM (SELECT m._id, m.pkgname, m.title, m.summary, m.created, m.updated, v.name, i.version_name, (CASE WHEN m.pkgname = 'de.ursa.android.gomxpf.installer' THEN 1 ELSE 0 END) AS is_framework, (CASE WHEN i.version_name IS NOT NULL THEN 1 ELSE 0 END) AS is_installed, (CASE WHEN v.code > i.version_code THEN 1 ELSE 0 END) AS has_update FROM modules AS m LEFT JOIN module_versions AS v ON v._id = m.latest_version_id LEFT JOIN installed_modules AS i ON i.pkgname = m.pkgname WHERE m.preferred = 1 AND m.pkgname = new.pkgname); END;
+CREATE TRIGGER module_overview_installed_delete AFTER DELETE ON installed_modules BEGIN INSERT OR REPLACE INTO module_overview SELECT *, is_framework * 4 + has_update * 2 + is_installed FROM (SELECT m._id, m.pkgname, m.title, m.summary, m.created, m.updated, v.name, i.version_name, (CASE WHEN m.pkgname = 'de.ursa.android.gomxpf.installer' THEN 1 ELSE 0 END) AS is_framework, (CASE WHEN i.version_name IS NOT NULL THEN 1 ELSE 0 END) AS is_installed, (CASE WHEN v.code > i.version_code THEN 1 ELSE 0 END) AS has_update FROM modules AS m LEFT JOIN module_versions AS v ON v._id = m.latest_version_id LEFT JOIN installed_modules AS i ON i.pkgname = m.pkgname WHERE m.preferred = 1 AND m.pkgname = old.pkgname); END;
+CREATE TABLE update_summary (_id INTEGER PRIMARY KEY CHECK (_id = 0), module_updates INTEGER NOT NULL DEFAULT 0, framework_update TEXT);
+INSERT INTO update_summary (_id) VALUES (0);
+CREATE TRIGGER update_summary_overview_insert AFTER INSERT ON module_overview WHEN new.has_update = 1 BEGIN UPDATE update_summary SET module_updates = module_updates + (new.is_framework = 0), framework_update = (CASE WHEN new.is_framework = 1 THEN new.latest_version ELSE framework_update END); END;
+CREATE TRIGGER update_summary_overview_delete AFTER DELETE ON module_overview WHEN old.has_update = 1 BEGIN UPDATE update_summary SET module_updates = module_updates - (old.is_framework = 0), framework_update = (CASE WHEN old.is_framework = 1 THEN NULL ELSE framework_update END); END;
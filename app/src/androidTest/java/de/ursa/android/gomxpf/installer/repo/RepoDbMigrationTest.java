@@ -0,0 +1,123 @@
+package de.ursa.android.gomxpf.installer.repo;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Opens databases created with the schema of every older version which is
+ * still migrated (see assets/repo_db) and checks that they can be used
+ * after the upgrade.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RepoDbMigrationTest {
+    private static final String DATABASE_NAME = "repo_db_migration_test.db";
+
+    // Only uses columns which exist since the oldest migrated version
+    private static final String SAMPLE_DATA = ""
+            + "INSERT INTO repositories (url) VALUES ('http://a.example.com/repo.xml.gz');\n"
+            + "INSERT INTO repositories (url) VALUES ('http://b.example.com/repo.xml.gz');\n"
+            + "INSERT INTO modules (repo_id, pkgname, title, summary, description, author)"
+            + " VALUES (1, 'com.example.one', 'First module', 'Summary', 'Description', 'Author');\n"
+            + "INSERT INTO modules (repo_id, pkgname, title, summary, description, author)"
+            + " VALUES (2, 'com.example.two', 'Second module', 'Summary', 'Description', 'Author');\n"
+            + "INSERT INTO module_versions (module_id, name, code, download_link)"
+            + " VALUES (1, '1.0', 1, 'http://a.example.com/one.apk');\n"
+            + "INSERT INTO module_versions (module_id, name, code, download_link)"
+            + " VALUES (2, '2.0', 2, 'http://b.example.com/two.apk');\n"
+            + "INSERT INTO more_info (module_id, label, value) VALUES (1, 'Label', 'Value');\n"
+            + "UPDATE modules SET latest_version_id = _id;\n";
+    // The search index is filled by the app, not by triggers
+    private static final int FIRST_VERSION_WITH_SEARCH_INDEX = 6;
+    private static final String SAMPLE_SEARCH_INDEX = ""
+            + "INSERT INTO modules_fts (docid, title) VALUES (1, 'First module');\n"
+            + "INSERT INTO modules_fts (docid, title) VALUES (2, 'Second module');\n";
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void upgradeFromOlderVersions() throws IOException {
+        for (int version = RepoDbDefinitions.DATABASE_VERSION_MIN_MIGRATION;
+                version < RepoDbDefinitions.DATABASE_VERSION; version++) {
+            mContext.deleteDatabase(DATABASE_NAME);
+            String sql = readSchema(version) + SAMPLE_DATA;
+            if (version >= FIRST_VERSION_WITH_SEARCH_INDEX)
+                sql += SAMPLE_SEARCH_INDEX;
+            DatabaseUtils.createDbFromSqlStatements(mContext, DATABASE_NAME, version, sql);
+
+            RepoDb helper = new RepoDb(mContext, mContext.getDatabasePath(DATABASE_NAME).getPath());
+            try {
+                checkUpgraded(helper.getWritableDatabase(), "version " + version);
+            } finally {
+                helper.close();
+            }
+        }
+    }
+
+    private static void checkUpgraded(SQLiteDatabase db, String message) {
+        assertEquals(message, RepoDbDefinitions.DATABASE_VERSION, db.getVersion());
+        assertEquals(message, 0, queryLong(db, "SELECT COUNT(*) FROM sqlite_master"
+                + " WHERE sql LIKE '%modules_old%' OR sql LIKE '%modules_new%'"));
+        assertEquals(message, 2, queryLong(db, "SELECT docid FROM modules_fts WHERE modules_fts MATCH 'second'"));
+        // The overview is no longer rebuilt on every start, so the upgrade
+        // must fill it for modules stored before it existed
+        assertEquals(message, 2, queryLong(db, "SELECT COUNT(*) FROM module_overview"));
+
+        // Fires the triggers on all tables which reference the modules
+        db.execSQL("INSERT INTO modules (repo_id, pkgname, title) VALUES (1, 'com.example.three', 'Third module')");
+        long moduleId = queryLong(db, "SELECT _id FROM modules WHERE pkgname = 'com.example.three'");
+        db.execSQL("INSERT INTO module_versions (module_id, name, code, download_link)"
+                + " VALUES (" + moduleId + ", '3.0', 3, 'http://a.example.com/three.apk')");
+        assertEquals(message, 1, queryLong(db, "SELECT COUNT(*) FROM module_overview WHERE _id = " + moduleId));
+
+        db.execSQL("DELETE FROM repositories WHERE _id = 1");
+        assertEquals(message, 1, queryLong(db, "SELECT COUNT(*) FROM modules"));
+        assertEquals(message, 1, queryLong(db, "SELECT COUNT(*) FROM module_versions"));
+        assertEquals(message, 0, queryLong(db, "SELECT COUNT(*) FROM more_info"));
+        assertEquals(message, 1, queryLong(db, "SELECT COUNT(*) FROM modules_fts"));
+        assertEquals(message, 0, queryLong(db, "SELECT COUNT(*) FROM module_overview WHERE _id = " + moduleId));
+    }
+
+    private static long queryLong(SQLiteDatabase db, String query) {
+        return DatabaseUtils.longForQuery(db, query, null);
+    }
+
+    private static String readSchema(int version) throws IOException {
+        InputStream in = InstrumentationRegistry.getContext().getAssets().open("repo_db/v" + version + ".sql");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
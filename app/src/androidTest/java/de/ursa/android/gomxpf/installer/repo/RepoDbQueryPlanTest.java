@@ -0,0 +1,78 @@
+package de.ursa.android.gomxpf.installer.repo;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.ModuleVersionsColumns;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the queries which run for every module are resolved through
+ * their indexes, without sorting.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RepoDbQueryPlanTest {
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_REPOSITORIES);
+        mDb.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_MODULES);
+        mDb.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_MODULE_VERSIONS);
+        mDb.execSQL(RepoDbDefinitions.SQL_CREATE_INDEX_MODULE_VERSIONS_LATEST);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    @Test
+    public void latestVersionUsesIndex() {
+        String query = "SELECT _id, " + RepoDb.getLatestVersionSubquery("?") + " FROM modules";
+        checkLatestVersionPlan(explain(query, "0"));
+    }
+
+    @Test
+    public void updateLatestVersionUsesIndex() {
+        String query = "UPDATE modules SET latest_version_id = " + RepoDb.getLatestVersionSubquery("?")
+                + " WHERE pkgname = ?";
+        checkLatestVersionPlan(explain(query, "0", "com.example.module"));
+    }
+
+    private static void checkLatestVersionPlan(List<String> plan) {
+        boolean usesIndex = false;
+        for (String step : plan) {
+            if (step.contains(ModuleVersionsColumns.IDX_LATEST))
+                usesIndex = true;
+            assertFalse("Sorts the versions: " + plan, step.contains("TEMP B-TREE"));
+        }
+        assertTrue("Doesn't use " + ModuleVersionsColumns.IDX_LATEST + ": " + plan, usesIndex);
+    }
+
+    private List<String> explain(String query, String... args) {
+        List<String> plan = new ArrayList<>();
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + query, args);
+        try {
+            int detailColumn = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                plan.add(c.getString(detailColumn));
+            }
+        } finally {
+            c.close();
+        }
+        return plan;
+    }
+}
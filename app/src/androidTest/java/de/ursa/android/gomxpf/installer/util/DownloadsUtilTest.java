@@ -0,0 +1,92 @@
+package de.ursa.android.gomxpf.installer.util;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.ursa.android.gomxpf.installer.util.DownloadsUtil.SyncDownloadInfo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Downloads a repository from stand-in mirrors, which serve the same path
+ * with different ETags.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DownloadsUtilTest {
+    private static final String PATH = "/repo/full.xml";
+    private static final int TIMEOUT = 5000;
+
+    private StandInServer mFirst;
+    private StandInServer mSecond;
+    private String mCacheKey;
+    private File mTarget;
+
+    @Before
+    public void setUp() throws IOException {
+        mFirst = new StandInServer();
+        mFirst.setETag("\"first\"");
+        mFirst.setBody("<repository/>");
+        mSecond = new StandInServer();
+        mSecond.setETag("\"second\"");
+        mSecond.setBody("<repository/>");
+
+        mCacheKey = mFirst.getUrl(PATH);
+        mTarget = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "downloads_util_test.xml");
+        DownloadsUtil.clearCache(mCacheKey);
+    }
+
+    @After
+    public void tearDown() {
+        mFirst.close();
+        mSecond.close();
+        DownloadsUtil.clearCache(mCacheKey);
+        mTarget.delete();
+    }
+
+    private int download(StandInServer server) {
+        SyncDownloadInfo info = DownloadsUtil.downloadSynchronously(server.getUrl(PATH), mCacheKey,
+                mTarget, null, TIMEOUT);
+        return info.status;
+    }
+
+    private static String lastIfNoneMatch(StandInServer server) {
+        int count = server.getRequests().size();
+        return server.getRequests().get(count - 1).headers.get("if-none-match");
+    }
+
+    @Test
+    public void validatorsAreOnlySentToTheirMirror() {
+        assertEquals(SyncDownloadInfo.STATUS_SUCCESS, download(mFirst));
+        assertEquals(SyncDownloadInfo.STATUS_NOT_MODIFIED, download(mFirst));
+        assertEquals("\"first\"", lastIfNoneMatch(mFirst));
+
+        // Another mirror must send its content, even if it would accept the
+        // ETag of the first one
+        mSecond.setETag("\"first\"");
+        assertEquals(SyncDownloadInfo.STATUS_SUCCESS, download(mSecond));
+        assertNull(lastIfNoneMatch(mSecond));
+        assertEquals(SyncDownloadInfo.STATUS_NOT_MODIFIED, download(mSecond));
+
+        // The validators now belong to the second mirror
+        assertEquals(SyncDownloadInfo.STATUS_SUCCESS, download(mFirst));
+        assertNull(lastIfNoneMatch(mFirst));
+    }
+
+    @Test
+    public void clearCacheForgetsValidators() {
+        assertEquals(SyncDownloadInfo.STATUS_SUCCESS, download(mFirst));
+        DownloadsUtil.clearCache(mCacheKey);
+
+        assertEquals(SyncDownloadInfo.STATUS_SUCCESS, download(mFirst));
+        assertNull(lastIfNoneMatch(mFirst));
+    }
+}
@@ -0,0 +1,133 @@
+package de.ursa.android.gomxpf.installer.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class MirrorSelectorTest {
+    private static final String PATH = "/repo/full.xml.gz";
+    private static final int PROBE_TIMEOUT = 10000;
+
+    private SharedPreferences mPref;
+    private final List<StandInServer> mServers = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mPref = InstrumentationRegistry.getTargetContext()
+                .getSharedPreferences("mirror_selector_test", Context.MODE_PRIVATE);
+        mPref.edit().clear().commit();
+    }
+
+    @After
+    public void tearDown() {
+        for (StandInServer server : mServers) {
+            server.close();
+        }
+        mPref.edit().clear().commit();
+    }
+
+    private StandInServer startServer() throws IOException {
+        StandInServer server = new StandInServer();
+        mServers.add(server);
+        return server;
+    }
+
+    @Test
+    public void probeOrdersMirrorsByLatency() throws IOException {
+        StandInServer failing = startServer();
+        failing.setStatus(404);
+        StandInServer slow = startServer();
+        slow.setDelay(500);
+        StandInServer fast = startServer();
+
+        MirrorSelector selector = new MirrorSelector(mPref, PROBE_TIMEOUT);
+        List<String> urls = Arrays.asList(failing.getUrl(PATH), slow.getUrl(PATH), fast.getUrl(PATH));
+        List<String> ordered = selector.probeAndOrder(urls, new CancellationSignal());
+
+        assertEquals(Arrays.asList(fast.getUrl(PATH), slow.getUrl(PATH), failing.getUrl(PATH)), ordered);
+        assertEquals("HEAD", fast.getRequests().get(0).method);
+        assertEquals(0f, selector.getSuccessRate(failing.getUrl(PATH)), 0);
+    }
+
+    @Test
+    public void recentlyUsedMirrorsAreNotProbed() throws IOException {
+        StandInServer first = startServer();
+        StandInServer second = startServer();
+
+        MirrorSelector selector = new MirrorSelector(mPref, PROBE_TIMEOUT);
+        List<String> urls = Arrays.asList(first.getUrl(PATH), second.getUrl(PATH));
+        selector.probeAndOrder(urls, new CancellationSignal());
+        selector.probeAndOrder(urls, new CancellationSignal());
+
+        assertEquals(1, first.getRequests().size());
+        assertEquals(1, second.getRequests().size());
+    }
+
+    @Test
+    public void cancelAbortsPendingProbes() throws IOException {
+        StandInServer hanging = startServer();
+        hanging.setHanging(true);
+        StandInServer fast = startServer();
+
+        MirrorSelector selector = new MirrorSelector(mPref, PROBE_TIMEOUT);
+        List<String> urls = Arrays.asList(hanging.getUrl(PATH), fast.getUrl(PATH));
+        final CancellationSignal signal = new CancellationSignal();
+        new Thread() {
+            @Override
+            public void run() {
+                SystemClock.sleep(300);
+                signal.cancel();
+            }
+        }.start();
+
+        long start = SystemClock.elapsedRealtime();
+        try {
+            selector.probeAndOrder(urls, signal);
+            fail("The probes were not cancelled");
+        } catch (OperationCanceledException expected) {
+        }
+        long duration = SystemClock.elapsedRealtime() - start;
+
+        assertTrue("Cancelling took " + duration + " ms", duration < 2000);
+        assertEquals(1, hanging.getRequests().size());
+        // The aborted probe must not count as a failure of the mirror
+        assertEquals(-1f, selector.getSuccessRate(hanging.getUrl(PATH)), 0);
+    }
+
+    @Test
+    public void cancelledSignalStartsNoProbes() throws IOException {
+        StandInServer first = startServer();
+        StandInServer second = startServer();
+
+        MirrorSelector selector = new MirrorSelector(mPref, PROBE_TIMEOUT);
+        CancellationSignal signal = new CancellationSignal();
+        signal.cancel();
+        try {
+            selector.probeAndOrder(Arrays.asList(first.getUrl(PATH), second.getUrl(PATH)), signal);
+            fail("The probes were not cancelled");
+        } catch (OperationCanceledException expected) {
+        }
+
+        assertEquals(0, first.getRequests().size());
+        assertEquals(0, second.getRequests().size());
+    }
+}
@@ -0,0 +1,176 @@
+package de.ursa.android.gomxpf.installer.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A minimal HTTP server on localhost which stands in for a repository
+ * mirror. Responses can be delayed or withheld, and the received requests
+ * are recorded.
+ */
+class StandInServer {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final ServerSocket mServerSocket;
+    private final List<Socket> mClients = Collections.synchronizedList(new ArrayList<Socket>());
+    private final List<Request> mRequests = Collections.synchronizedList(new ArrayList<Request>());
+    private volatile int mStatus = 200;
+    private volatile long mDelay = 0;
+    private volatile boolean mHanging = false;
+    private volatile String mETag = null;
+    private volatile String mBody = "";
+
+    StandInServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread("StandInServer") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket client = mServerSocket.accept();
+                        mClients.add(client);
+                        new Thread("StandInServerClient") {
+                            @Override
+                            public void run() {
+                                handle(client);
+                            }
+                        }.start();
+                    }
+                } catch (IOException ignored) {
+                    // Closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    void setStatus(int status) {
+        mStatus = status;
+    }
+
+    void setDelay(long delay) {
+        mDelay = delay;
+    }
+
+    /**
+     * Reads the requests, but never responds until the server is closed.
+     */
+    void setHanging(boolean hanging) {
+        mHanging = hanging;
+    }
+
+    /**
+     * Sends this ETag and answers requests which contain it with 304.
+     */
+    void setETag(String etag) {
+        mETag = etag;
+    }
+
+    void setBody(String body) {
+        mBody = body;
+    }
+
+    List<Request> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<>(mRequests);
+        }
+    }
+
+    void close() {
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+        synchronized (mClients) {
+            for (Socket client : mClients) {
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void handle(Socket client) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), ISO_8859_1));
+            String requestLine = reader.readLine();
+            if (requestLine == null)
+                return;
+
+            Request request = new Request(requestLine.split(" ")[0]);
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0)
+                    request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+            }
+            mRequests.add(request);
+
+            if (mHanging) {
+                // Blocks until the client or the server closes the socket
+                while (client.getInputStream().read() != -1) {
+                }
+                return;
+            }
+            if (mDelay > 0)
+                Thread.sleep(mDelay);
+
+            String etag = mETag;
+            byte[] body = mBody.getBytes(ISO_8859_1);
+            int status = mStatus;
+            if (etag != null && etag.equals(request.headers.get("if-none-match")))
+                status = 304;
+
+            StringBuilder response = new StringBuilder();
+            response.append("HTTP/1.1 ").append(status).append(status < 400 ? " OK" : " Error").append("\r\n");
+            response.append("Connection: close\r\n");
+            if (etag != null)
+                response.append("ETag: ").append(etag).append("\r\n");
+            if (status != 304)
+                response.append("Content-Length: ").append(body.length).append("\r\n");
+            response.append("\r\n");
+
+            OutputStream out = client.getOutputStream();
+            out.write(response.toString().getBytes(ISO_8859_1));
+            if (status != 304 && !"HEAD".equals(request.method))
+                out.write(body);
+            out.flush();
+        } catch (IOException | InterruptedException ignored) {
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+            mClients.remove(client);
+        }
+    }
+
+    static class Request {
+        final String method;
+        // Header names are lower case
+        final Map<String, String> headers = new HashMap<>();
+
+        Request(String method) {
+            this.method = method;
+        }
+    }
+}
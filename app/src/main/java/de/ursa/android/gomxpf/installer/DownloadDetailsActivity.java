@@ -23,11 +23,14 @@ import android.view.View;
 import android.widget.TextView;
 
 import java.util.List;
+import java.util.Set;
 
 import de.ursa.android.gomxpf.installer.repo.Module;
 import de.ursa.android.gomxpf.installer.util.ModuleUtil;
 import de.ursa.android.gomxpf.installer.util.ModuleUtil.InstalledModule;
 import de.ursa.android.gomxpf.installer.util.ModuleUtil.ModuleListener;
+import de.ursa.android.gomxpf.installer.util.ReloadHandle;
+import de.ursa.android.gomxpf.installer.util.ReloadHandle.ReloadCallback;
 import de.ursa.android.gomxpf.installer.util.RepoLoader;
 import de.ursa.android.gomxpf.installer.util.RepoLoader.RepoListener;
 import de.ursa.android.gomxpf.installer.util.ThemeUtil;
@@ -100,9 +103,15 @@ public class DownloadDetailsActivity extends XposedBaseActivity
 
             findViewById(R.id.reload).setOnClickListener(new View.OnClickListener() {
                 @Override
-                public void onClick(View v) {
+                public void onClick(final View v) {
                     v.setEnabled(false);
-                    sRepoLoader.triggerReload(true);
+                    // The activity is reloaded if the module was found
+                    sRepoLoader.triggerReload(true).addCallback(new ReloadCallback() {
+                        @Override
+                        public void onReloadFinished(ReloadHandle handle) {
+                            v.setEnabled(true);
+                        }
+                    });
                 }
             });
         }
@@ -177,8 +186,9 @@ public class DownloadDetailsActivity extends XposedBaseActivity
     }
 
     @Override
-    public void onInstalledModulesReloaded(ModuleUtil moduleUtil) {
-        reload();
+    public void onInstalledModulesReloaded(ModuleUtil moduleUtil, Set<String> changedPackages) {
+        if (changedPackages.contains(mPackageName))
+            reload();
     }
 
     @Override
@@ -5,12 +5,16 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MergeCursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v4.widget.SwipeRefreshLayout;
 import android.support.v7.widget.SearchView;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -18,22 +22,29 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.CursorAdapter;
-import android.widget.FilterQueryProvider;
 import android.widget.TextView;
 
 import com.afollestad.materialdialogs.MaterialDialog;
 
 import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Set;
 
+import de.ursa.android.gomxpf.installer.repo.OverviewQueryScheduler;
 import de.ursa.android.gomxpf.installer.repo.RepoDb;
 import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.OverviewColumnsIndexes;
 import de.ursa.android.gomxpf.installer.util.ModuleUtil;
 import de.ursa.android.gomxpf.installer.util.ModuleUtil.InstalledModule;
 import de.ursa.android.gomxpf.installer.util.ModuleUtil.ModuleListener;
+import de.ursa.android.gomxpf.installer.util.ReloadHandle;
+import de.ursa.android.gomxpf.installer.util.ReloadHandle.ReloadCallback;
 import de.ursa.android.gomxpf.installer.util.RepoLoader;
 import de.ursa.android.gomxpf.installer.util.RepoLoader.RepoListener;
 import de.ursa.android.gomxpf.installer.util.ThemeUtil;
@@ -43,6 +54,8 @@ import se.emilsjolander.stickylistheaders.StickyListHeadersListView;
 import static android.content.Context.MODE_PRIVATE;
 
 public class DownloadFragment extends Fragment implements RepoListener, ModuleListener, SharedPreferences.OnSharedPreferenceChangeListener {
+    // Load the next page when the list is scrolled this close to its end
+    private static final int PAGE_PRELOAD_ITEMS = 20;
     private SharedPreferences mPref;
     private DownloadsAdapter mAdapter;
     private String mFilterText;
@@ -53,6 +66,8 @@ public class DownloadFragment extends Fragment implements RepoListener, ModuleLi
     private StickyListHeadersListView mListView;
     private SharedPreferences mIgnoredUpdatesPref;
     private boolean changed = false;
+    private boolean mPageLoading = false;
+    private OverviewQueryScheduler mQueryScheduler;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -61,10 +76,11 @@ public class DownloadFragment extends Fragment implements RepoListener, ModuleLi
         mRepoLoader = RepoLoader.getInstance();
         mModuleUtil = ModuleUtil.getInstance();
         mAdapter = new DownloadsAdapter(getActivity());
-        mAdapter.setFilterQueryProvider(new FilterQueryProvider() {
+        mQueryScheduler = new OverviewQueryScheduler(new OverviewQueryScheduler.Callback() {
             @Override
-            public Cursor runQuery(CharSequence constraint) {
-                return RepoDb.queryModuleOverview(mSortingOrder, constraint);
+            public void onOverviewLoaded(Cursor cursor, int sortingOrder, CharSequence filterText) {
+                mAdapter.changeCursor(new OverviewCursor(Collections.singletonList(cursor), sortingOrder,
+                        filterText, cursor.getCount() < RepoDb.OVERVIEW_PAGE_SIZE));
             }
         });
         mSortingOrder = mPref.getInt("download_sorting_order",
@@ -100,6 +116,8 @@ public class DownloadFragment extends Fragment implements RepoListener, ModuleLi
         super.onDestroy();
 
         mIgnoredUpdatesPref.unregisterOnSharedPreferenceChangeListener(this);
+        mQueryScheduler.shutdown();
+        mAdapter.changeCursor(null);
     }
 
     @Override
@@ -116,7 +134,13 @@ public class DownloadFragment extends Fragment implements RepoListener, ModuleLi
                     @Override
                     public void onRefresh() {
                         mRepoLoader.setSwipeRefreshLayout(refreshLayout);
-                        mRepoLoader.triggerReload(true);
+                        // Also stops the animation if the reload was skipped
+                        mRepoLoader.triggerReload(true).addCallback(new ReloadCallback() {
+                            @Override
+                            public void onReloadFinished(ReloadHandle handle) {
+                                refreshLayout.setRefreshing(false);
+                            }
+                        });
                     }
                 });
         mRepoLoader.addListener(this, true);
@@ -135,6 +159,17 @@ public class DownloadFragment extends Fragment implements RepoListener, ModuleLi
                 startActivity(detailsIntent);
             }
         });
+        mListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_PRELOAD_ITEMS)
+                    loadNextPage();
+            }
+        });
         mListView.setOnKeyListener(new View.OnKeyListener() {
             @Override
             public boolean onKey(View v, int keyCode, KeyEvent event) {
@@ -198,11 +233,25 @@ public class DownloadFragment extends Fragment implements RepoListener, ModuleLi
 
     private void setFilter(String filterText) {
         mFilterText = filterText;
-        reloadItems();
+        // Wait until the user has stopped typing
+        mQueryScheduler.schedule(mSortingOrder, mFilterText, true);
     }
 
     private void reloadItems() {
-        mAdapter.getFilter().filter(mFilterText);
+        mQueryScheduler.schedule(mSortingOrder, mFilterText, false);
+    }
+
+    private void loadNextPage() {
+        Cursor cursor = mAdapter.getCursor();
+        if (mPageLoading || !(cursor instanceof OverviewCursor))
+            return;
+
+        OverviewCursor current = (OverviewCursor) cursor;
+        if (current.isComplete() || !current.moveToLast())
+            return;
+
+        mPageLoading = true;
+        new OverviewPageLoader(current, new RepoDb.OverviewPageKey(current)).execute();
     }
 
     @Override
@@ -240,7 +289,7 @@ public class DownloadFragment extends Fragment implements RepoListener, ModuleLi
     }
 
     @Override
-    public void onInstalledModulesReloaded(ModuleUtil moduleUtil) {
+    public void onInstalledModulesReloaded(ModuleUtil moduleUtil, Set<String> changedPackages) {
         reloadItems();
     }
 
@@ -249,6 +298,72 @@ public class DownloadFragment extends Fragment implements RepoListener, ModuleLi
         changed = true;
     }
 
+    /**
+     * The pages of the module overview which have been loaded so far,
+     * together with the query they belong to. The pages are merged by one
+     * flat cursor, so the lookup cost doesn't grow with every page.
+     */
+    private static class OverviewCursor extends CursorWrapper {
+        private final List<Cursor> mPages;
+        private final int mSortingOrder;
+        private final CharSequence mFilterText;
+        private final boolean mComplete;
+
+        public OverviewCursor(List<Cursor> pages, int sortingOrder, CharSequence filterText, boolean complete) {
+            super(pages.size() == 1 ? pages.get(0) : new MergeCursor(pages.toArray(new Cursor[pages.size()])));
+            mPages = pages;
+            mSortingOrder = sortingOrder;
+            mFilterText = filterText;
+            mComplete = complete;
+        }
+
+        public boolean isComplete() {
+            return mComplete;
+        }
+    }
+
+    private class OverviewPageLoader extends AsyncTask<Void, Void, Cursor> {
+        private final OverviewCursor mCurrent;
+        private final RepoDb.OverviewPageKey mAfter;
+
+        public OverviewPageLoader(OverviewCursor current, RepoDb.OverviewPageKey after) {
+            mCurrent = current;
+            mAfter = after;
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            // The window is filled here rather than on the UI thread
+            try {
+                return RepoDb.queryModuleOverview(mCurrent.mSortingOrder, mCurrent.mFilterText, mAfter, null);
+            } catch (RuntimeException e) {
+                Log.e(XposedApp.TAG, "DownloadFragment -> could not load the next page", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Cursor page) {
+            mPageLoading = false;
+            if (page == null)
+                return;
+
+            // The list has been reloaded in the meantime
+            if (mAdapter.getCursor() != mCurrent) {
+                page.close();
+                return;
+            }
+
+            // The previous pages are still part of the new cursor, so the old
+            // one must not be closed
+            List<Cursor> pages = new ArrayList<>(mCurrent.mPages.size() + 1);
+            pages.addAll(mCurrent.mPages);
+            pages.add(page);
+            mAdapter.swapCursor(new OverviewCursor(pages, mCurrent.mSortingOrder, mCurrent.mFilterText,
+                    page.getCount() < RepoDb.OVERVIEW_PAGE_SIZE));
+        }
+    }
+
     private class DownloadsAdapter extends CursorAdapter implements StickyListHeadersAdapter {
         private final Context mContext;
         private final DateFormat mDateFormatter = DateFormat.getDateInstance(DateFormat.SHORT);
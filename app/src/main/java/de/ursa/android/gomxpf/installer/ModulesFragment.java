@@ -394,7 +394,7 @@ public class ModulesFragment extends ListFragment implements ModuleListener {
     }
 
     @Override
-    public void onInstalledModulesReloaded(ModuleUtil moduleUtil) {
+    public void onInstalledModulesReloaded(ModuleUtil moduleUtil, Set<String> changedPackages) {
         getActivity().runOnUiThread(reloadModules);
     }
 
@@ -7,6 +7,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
@@ -16,14 +17,19 @@ import android.preference.PreferenceFragment;
 import android.support.annotation.ColorInt;
 import android.support.v7.app.ActionBar;
 import android.support.v7.widget.Toolbar;
+import android.util.Log;
+import android.util.Pair;
 import android.view.View;
 import android.widget.Toast;
 
+import com.afollestad.materialdialogs.MaterialDialog;
 import com.afollestad.materialdialogs.color.ColorChooserDialog;
 
 import java.io.File;
 import java.io.IOException;
 
+import de.ursa.android.gomxpf.installer.repo.RepoDbStats;
+import de.ursa.android.gomxpf.installer.repo.SyncRun;
 import de.ursa.android.gomxpf.installer.util.RepoLoader;
 import de.ursa.android.gomxpf.installer.util.ThemeUtil;
 import de.ursa.android.gomxpf.installer.util.UpdateService;
@@ -179,6 +185,8 @@ public class SettingsActivity extends XposedBaseActivity implements ColorChooser
             });
 
             colors.setOnPreferenceClickListener(this);
+            findPreference("db_stats").setOnPreferenceClickListener(this);
+            findPreference("sync_history").setOnPreferenceClickListener(this);
 
             ListPreference customIcon = (ListPreference) findPreference("custom_icon");
 
@@ -211,6 +219,10 @@ public class SettingsActivity extends XposedBaseActivity implements ColorChooser
             if (key.equals(colors.getKey()) || key.equals("theme") || key.equals(nav_bar.getKey()))
                 getActivity().recreate();
 
+            if (key.equals("db_slow_threshold"))
+                RepoDbStats.setSlowThresholdMs(Integer.parseInt(sharedPreferences.getString(key,
+                        Integer.toString(RepoDbStats.DEFAULT_SLOW_THRESHOLD_MS))));
+
             if (key.equals("update_service_interval")) {
                 final Intent intent = new Intent(getActivity(), UpdateService.class);
                 getActivity().stopService(intent);
@@ -237,8 +249,85 @@ public class SettingsActivity extends XposedBaseActivity implements ColorChooser
                         .customColors(PRIMARY_COLORS, null)
                         .doneButton(android.R.string.ok)
                         .preselect(XposedApp.getColor(act)).show();
+            else if (preference.getKey().equals("db_stats"))
+                showDbStats(act);
+            else if (preference.getKey().equals("sync_history"))
+                showSyncHistory(act);
 
             return true;
         }
+
+        private void showDbStats(final Context context) {
+            final String report = RepoDbStats.getReport();
+            new MaterialDialog.Builder(context).title(R.string.settings_db_stats)
+                    .content(report)
+                    .positiveText(android.R.string.ok)
+                    .negativeText(R.string.db_stats_reset)
+                    .neutralText(R.string.menuSend)
+                    .callback(new MaterialDialog.ButtonCallback() {
+                        @Override
+                        public void onNegative(MaterialDialog dialog) {
+                            super.onNegative(dialog);
+                            RepoDbStats.reset();
+                        }
+
+                        @Override
+                        public void onNeutral(MaterialDialog dialog) {
+                            super.onNeutral(dialog);
+                            Intent sendIntent = new Intent(Intent.ACTION_SEND);
+                            sendIntent.setType("text/plain");
+                            sendIntent.putExtra(Intent.EXTRA_SUBJECT, context.getString(R.string.settings_db_stats));
+                            sendIntent.putExtra(Intent.EXTRA_TEXT, report);
+                            startActivity(Intent.createChooser(sendIntent, getString(R.string.share)));
+                        }
+                    }).show();
+        }
+
+        private void showSyncHistory(Context context) {
+            new SyncHistoryLoader(context).execute();
+        }
+
+        /**
+         * Reads the sync history from the database and shows it in a dialog.
+         */
+        private class SyncHistoryLoader extends AsyncTask<Void, Void, Pair<String, String>> {
+            private final Context mDialogContext;
+
+            SyncHistoryLoader(Context context) {
+                mDialogContext = context;
+            }
+
+            @Override
+            protected Pair<String, String> doInBackground(Void... params) {
+                try {
+                    return Pair.create(SyncRun.getHistoryReport(), SyncRun.getHistoryCsv());
+                } catch (RuntimeException e) {
+                    Log.e(XposedApp.TAG, "SettingsActivity -> could not load the sync history", e);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(final Pair<String, String> history) {
+                if (history == null || !isAdded())
+                    return;
+
+                new MaterialDialog.Builder(mDialogContext).title(R.string.settings_sync_history)
+                        .content(history.first)
+                        .positiveText(android.R.string.ok)
+                        .neutralText(R.string.menuSend)
+                        .callback(new MaterialDialog.ButtonCallback() {
+                            @Override
+                            public void onNeutral(MaterialDialog dialog) {
+                                super.onNeutral(dialog);
+                                Intent sendIntent = new Intent(Intent.ACTION_SEND);
+                                sendIntent.setType("text/csv");
+                                sendIntent.putExtra(Intent.EXTRA_SUBJECT, mDialogContext.getString(R.string.settings_sync_history));
+                                sendIntent.putExtra(Intent.EXTRA_TEXT, history.second);
+                                startActivity(Intent.createChooser(sendIntent, getString(R.string.share)));
+                            }
+                        }).show();
+            }
+        }
     }
 }
\ No newline at end of file
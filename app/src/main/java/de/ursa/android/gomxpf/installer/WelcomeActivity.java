@@ -16,6 +16,8 @@ import android.support.v7.widget.Toolbar;
 import android.view.MenuItem;
 import android.view.View;
 
+import java.util.Set;
+
 import de.ursa.android.gomxpf.installer.util.ModuleUtil;
 import de.ursa.android.gomxpf.installer.util.ModuleUtil.InstalledModule;
 import de.ursa.android.gomxpf.installer.util.ModuleUtil.ModuleListener;
@@ -229,7 +231,7 @@ public class WelcomeActivity extends XposedBaseActivity
     }
 
     @Override
-    public void onInstalledModulesReloaded(ModuleUtil moduleUtil) {
+    public void onInstalledModulesReloaded(ModuleUtil moduleUtil, Set<String> changedPackages) {
         notifyDataSetChanged();
     }
 
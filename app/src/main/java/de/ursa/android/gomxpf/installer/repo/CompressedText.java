@@ -0,0 +1,97 @@
+package de.ursa.android.gomxpf.installer.repo;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores long texts (descriptions and changelogs) as deflated BLOBs. Short
+ * texts and texts which don't get smaller are stored as plain TEXT, so the
+ * type of the value tells whether it has to be inflated.
+ */
+final class CompressedText {
+    // Below this length, the compression overhead usually outweighs the gain
+    static final int MIN_COMPRESS_LENGTH = 256;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // This runs while syncing, and the best compression level costs much
+    // more time than the little space it saves
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    private final byte[] mChunk = new byte[4096];
+
+    /**
+     * Binds the text either as compressed BLOB or as TEXT.
+     */
+    void bind(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+            return;
+        }
+
+        byte[] compressed = compress(value);
+        if (compressed != null)
+            statement.bindBlob(index, compressed);
+        else
+            statement.bindString(index, value);
+    }
+
+    /**
+     * @return the deflated text, or {@code null} if it shouldn't be stored
+     * compressed
+     */
+    byte[] compress(String value) {
+        if (value.length() < MIN_COMPRESS_LENGTH)
+            return null;
+
+        byte[] input = value.getBytes(UTF8);
+        mDeflater.reset();
+        mDeflater.setInput(input);
+        mDeflater.finish();
+        mBuffer.reset();
+        while (!mDeflater.finished()) {
+            int count = mDeflater.deflate(mChunk);
+            mBuffer.write(mChunk, 0, count);
+            if (mBuffer.size() >= input.length)
+                return null;
+        }
+        return mBuffer.toByteArray();
+    }
+
+    void close() {
+        mDeflater.end();
+    }
+
+    /**
+     * Reads a column which was written by {@link #bind}.
+     */
+    static String read(Cursor c, int index) {
+        if (c.getType(index) != Cursor.FIELD_TYPE_BLOB)
+            return c.getString(index);
+
+        byte[] compressed = c.getBlob(index);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] chunk = new byte[4096];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(chunk);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new DataFormatException("Truncated text");
+                out.write(chunk, 0, count);
+            }
+            return new String(out.toByteArray(), UTF8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Could not inflate text", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package de.ursa.android.gomxpf.installer.repo;
+
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import de.ursa.android.gomxpf.installer.XposedApp;
+
+/**
+ * Runs the queries for the module overview on a dedicated thread. Requests
+ * can be debounced (e.g. while typing a search term), each new request
+ * cancels the one before and only the result of the newest request is
+ * delivered, on the main thread.
+ */
+public class OverviewQueryScheduler {
+    private static final long DEBOUNCE_DELAY_MS = 250;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "OverviewQuery");
+        }
+    });
+    private final Callback mCallback;
+
+    // Only accessed on the main thread
+    private int mGeneration = 0;
+    private Runnable mPendingQuery = null;
+    private CancellationSignal mCancellationSignal = null;
+    private boolean mShutdown = false;
+
+    public OverviewQueryScheduler(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Requests a new query, superseding all previous ones. Can be called from
+     * any thread.
+     *
+     * @param debounce wait a moment before starting the query, in case
+     *                 another one is requested shortly after
+     */
+    public void schedule(final int sortingOrder, final CharSequence filterText, final boolean debounce) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            scheduleOnMainThread(sortingOrder, filterText, debounce);
+        } else {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    scheduleOnMainThread(sortingOrder, filterText, debounce);
+                }
+            });
+        }
+    }
+
+    private void scheduleOnMainThread(int sortingOrder, CharSequence filterText, boolean debounce) {
+        if (mShutdown)
+            return;
+
+        cancelCurrent();
+
+        final QueryTask task = new QueryTask(++mGeneration, sortingOrder, filterText, mCancellationSignal = new CancellationSignal());
+        mPendingQuery = new Runnable() {
+            @Override
+            public void run() {
+                mPendingQuery = null;
+                mExecutor.execute(task);
+            }
+        };
+        mHandler.postDelayed(mPendingQuery, debounce ? DEBOUNCE_DELAY_MS : 0);
+    }
+
+    private void cancelCurrent() {
+        if (mPendingQuery != null) {
+            mHandler.removeCallbacks(mPendingQuery);
+            mPendingQuery = null;
+        }
+        if (mCancellationSignal != null) {
+            mCancellationSignal.cancel();
+            mCancellationSignal = null;
+        }
+    }
+
+    /**
+     * Cancels all queries and stops the query thread. Must be called on the
+     * main thread.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        mGeneration++;
+        cancelCurrent();
+        mExecutor.shutdown();
+    }
+
+    private void deliver(int generation, Cursor cursor, int sortingOrder, CharSequence filterText) {
+        if (mShutdown || generation != mGeneration) {
+            cursor.close();
+            return;
+        }
+
+        mCancellationSignal = null;
+        mCallback.onOverviewLoaded(cursor, sortingOrder, filterText);
+    }
+
+    public interface Callback {
+        /**
+         * Called on the main thread with the first page of the newest query.
+         * The receiver is responsible for closing the cursor.
+         */
+        void onOverviewLoaded(Cursor cursor, int sortingOrder, CharSequence filterText);
+    }
+
+    private class QueryTask implements Runnable {
+        private final int mTaskGeneration;
+        private final int mSortingOrder;
+        private final CharSequence mFilterText;
+        private final CancellationSignal mSignal;
+
+        QueryTask(int generation, int sortingOrder, CharSequence filterText, CancellationSignal signal) {
+            mTaskGeneration = generation;
+            mSortingOrder = sortingOrder;
+            mFilterText = filterText;
+            mSignal = signal;
+        }
+
+        @Override
+        public void run() {
+            // The window is filled right away, this is also cancellable. The
+            // cursor is closed by the query if that fails.
+            final Cursor cursor;
+            try {
+                mSignal.throwIfCanceled();
+                cursor = RepoDb.queryModuleOverview(mSortingOrder, mFilterText, null, mSignal);
+            } catch (OperationCanceledException e) {
+                Log.d(XposedApp.TAG, "OverviewQueryScheduler -> canceled query for \"" + mFilterText + "\"");
+                return;
+            } catch (RuntimeException e) {
+                // E.g. an invalid search term, the previous result stays visible
+                Log.e(XposedApp.TAG, "OverviewQueryScheduler -> query for \"" + mFilterText + "\" failed", e);
+                return;
+            }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(mTaskGeneration, cursor, mSortingOrder, mFilterText);
+                }
+            });
+        }
+    }
+}
@@ -3,23 +3,43 @@ package de.ursa.android.gomxpf.installer.repo;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
 import android.text.TextUtils;
+import android.util.Log;
 import android.util.Pair;
 
 import java.io.File;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import de.ursa.android.gomxpf.installer.XposedApp;
 import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.InstalledModulesColumns;
-import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.InstalledModulesUpdatesColumns;
+import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.ModuleOverviewColumns;
 import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.ModuleVersionsColumns;
 import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.ModulesColumns;
+import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.ModulesFtsColumns;
 import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.MoreInfoColumns;
 import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.OverviewColumns;
 import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.OverviewColumnsIndexes;
+import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.PackageSnapshotColumns;
+import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.ReleaseTypeOverridesColumns;
 import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.RepositoriesColumns;
+import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.SyncHistoryColumns;
+import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.UpdateSummaryColumns;
 import de.ursa.android.gomxpf.installer.util.ModuleUtil;
 import de.ursa.android.gomxpf.installer.util.ModuleUtil.InstalledModule;
 import de.ursa.android.gomxpf.installer.util.RepoLoader;
@@ -29,12 +49,28 @@ public final class RepoDb extends SQLiteOpenHelper {
     public static final int SORT_UPDATED = 1;
     public static final int SORT_CREATED = 2;
 
+    public static final int OVERVIEW_PAGE_SIZE = 100;
+
+    private static final int LOADER_KIND_MODULE = 0;
+    private static final int LOADER_KIND_VERSION = 1;
+    private static final int LOADER_KIND_MORE_INFO = 2;
+
     private static RepoDb mInstance;
     private static SQLiteDatabase mDb;
+    // Read-only connection for the UI, which sees the last committed state
+    // while a sync is writing on mDb
+    private static SQLiteDatabase mReadDb;
     private static RepoLoader mRepoLoader;
+    private final String mFrameworkPackageName;
 
     private RepoDb(Context context) {
-        super(context, new File(context.getCacheDir(), RepoDbDefinitions.DATABASE_NAME).getPath(), null, RepoDbDefinitions.DATABASE_VERSION);
+        this(context, new File(context.getCacheDir(), RepoDbDefinitions.DATABASE_NAME).getPath());
+    }
+
+    /* package */ RepoDb(Context context, String path) {
+        super(context, path, null, RepoDbDefinitions.DATABASE_VERSION);
+        mFrameworkPackageName = context.getPackageName();
+        setWriteAheadLoggingEnabled(true);
     }
 
     public synchronized static void init(Context context, RepoLoader repoLoader) {
@@ -44,8 +80,8 @@ public final class RepoDb extends SQLiteOpenHelper {
         mRepoLoader = repoLoader;
         mInstance = new RepoDb(context);
         mDb = mInstance.getWritableDatabase();
-        mDb.execSQL("PRAGMA foreign_keys=ON");
         mInstance.createTempTables(mDb);
+        mReadDb = SQLiteDatabase.openDatabase(mDb.getPath(), null, SQLiteDatabase.OPEN_READONLY);
     }
 
     public static void beginTransation() {
@@ -60,11 +96,22 @@ public final class RepoDb extends SQLiteOpenHelper {
         mDb.endTransaction();
     }
 
+    /**
+     * Commits the current transaction and directly begins a new one, so that
+     * large imports can be split into chunks. Must not be called within a
+     * nested transaction.
+     */
+    public static void commitTransaction() {
+        mDb.setTransactionSuccessful();
+        mDb.endTransaction();
+        mDb.beginTransaction();
+    }
+
     private static String getString(String table, String searchColumn, String searchValue, String resultColumn) {
         String[] projection = new String[]{resultColumn};
         String where = searchColumn + " = ?";
         String[] whereArgs = new String[]{searchValue};
-        Cursor c = mDb.query(table, projection, where, whereArgs, null, null, null, "1");
+        Cursor c = mReadDb.query(table, projection, where, whereArgs, null, null, null, "1");
         if (c.moveToFirst()) {
             String result = c.getString(c.getColumnIndexOrThrow(resultColumn));
             c.close();
@@ -75,9 +122,10 @@ public final class RepoDb extends SQLiteOpenHelper {
         }
     }
 
-    public static long insertRepository(String url) {
+    public static long insertRepository(String url, int priority) {
         ContentValues values = new ContentValues();
         values.put(RepositoriesColumns.URL, url);
+        values.put(RepositoriesColumns.PRIORITY, priority);
         return mDb.insertOrThrow(RepositoriesColumns.TABLE_NAME, null, values);
     }
 
@@ -120,75 +168,13 @@ public final class RepoDb extends SQLiteOpenHelper {
         mDb.update(RepositoriesColumns.TABLE_NAME, values, RepositoriesColumns._ID + " = ?", new String[]{Long.toString(repoId)});
     }
 
-    public static long insertModule(long repoId, Module mod) {
-        ContentValues values = new ContentValues();
-        values.put(ModulesColumns.REPO_ID, repoId);
-        values.put(ModulesColumns.PKGNAME, mod.packageName);
-        values.put(ModulesColumns.TITLE, mod.name);
-        values.put(ModulesColumns.SUMMARY, mod.summary);
-        values.put(ModulesColumns.DESCRIPTION, mod.description);
-        values.put(ModulesColumns.DESCRIPTION_IS_HTML, mod.descriptionIsHtml);
-        values.put(ModulesColumns.AUTHOR, mod.author);
-        values.put(ModulesColumns.SUPPORT, mod.support);
-        values.put(ModulesColumns.CREATED, mod.created);
-        values.put(ModulesColumns.UPDATED, mod.updated);
-
-        ModuleVersion latestVersion = mRepoLoader.getLatestVersion(mod);
-
-        mDb.beginTransaction();
-        try {
-            long moduleId = mDb.insertOrThrow(ModulesColumns.TABLE_NAME, null, values);
-
-            long latestVersionId = -1;
-            for (ModuleVersion version : mod.versions) {
-                long versionId = insertModuleVersion(moduleId, version);
-                if (latestVersion == version)
-                    latestVersionId = versionId;
-            }
-
-            if (latestVersionId > -1) {
-                values = new ContentValues();
-                values.put(ModulesColumns.LATEST_VERSION, latestVersionId);
-                mDb.update(ModulesColumns.TABLE_NAME, values, ModulesColumns._ID + " = ?", new String[]{Long.toString(moduleId)});
-            }
-
-            for (Pair<String, String> moreInfoEntry : mod.moreInfo) {
-                insertMoreInfo(moduleId, moreInfoEntry.first, moreInfoEntry.second);
-            }
-
-            // TODO Add mod.screenshots
-
-            mDb.setTransactionSuccessful();
-            return moduleId;
-
-        } finally {
-            mDb.endTransaction();
-        }
-    }
-
-    private static long insertModuleVersion(long moduleId,
-                                            ModuleVersion version) {
-        ContentValues values = new ContentValues();
-        values.put(ModuleVersionsColumns.MODULE_ID, moduleId);
-        values.put(ModuleVersionsColumns.NAME, version.name);
-        values.put(ModuleVersionsColumns.CODE, version.code);
-        values.put(ModuleVersionsColumns.DOWNLOAD_LINK, version.downloadLink);
-        values.put(ModuleVersionsColumns.MD5SUM, version.md5sum);
-        values.put(ModuleVersionsColumns.CHANGELOG, version.changelog);
-        values.put(ModuleVersionsColumns.CHANGELOG_IS_HTML, version.changelogIsHtml);
-        values.put(ModuleVersionsColumns.RELTYPE, version.relType.ordinal());
-        values.put(ModuleVersionsColumns.UPLOADED, version.uploaded);
-        return mDb.insertOrThrow(ModuleVersionsColumns.TABLE_NAME, null,
-                values);
-    }
-
-    private static long insertMoreInfo(long moduleId, String title,
-                                       String value) {
-        ContentValues values = new ContentValues();
-        values.put(MoreInfoColumns.MODULE_ID, moduleId);
-        values.put(MoreInfoColumns.LABEL, title);
-        values.put(MoreInfoColumns.VALUE, value);
-        return mDb.insertOrThrow(MoreInfoColumns.TABLE_NAME, null, values);
+    /**
+     * Returns a writer with precompiled statements for inserting many modules,
+     * e.g. during a repository sync. It must only be used within a transaction
+     * and has to be closed afterwards.
+     */
+    public static BulkWriter openBulkWriter() {
+        return new BulkWriter();
     }
 
     public static void deleteAllModules(long repoId) {
@@ -199,83 +185,97 @@ public final class RepoDb extends SQLiteOpenHelper {
         mDb.delete(ModulesColumns.TABLE_NAME, ModulesColumns.REPO_ID + " = ? AND " + ModulesColumns.PKGNAME + " = ?", new String[]{Long.toString(repoId), packageName});
     }
 
-    public static Module getModuleByPackageName(String packageName) {
-        // The module itself
-        String[] projection = new String[]{ModulesColumns._ID,
-                ModulesColumns.REPO_ID, ModulesColumns.PKGNAME,
-                ModulesColumns.TITLE, ModulesColumns.SUMMARY,
-                ModulesColumns.DESCRIPTION, ModulesColumns.DESCRIPTION_IS_HTML,
-                ModulesColumns.AUTHOR, ModulesColumns.SUPPORT,
-                ModulesColumns.CREATED, ModulesColumns.UPDATED,};
-
-        String where = ModulesColumns.PREFERRED + " = 1 AND " + ModulesColumns.PKGNAME + " = ?";
-        String[] whereArgs = new String[]{packageName};
-
-        Cursor c = mDb.query(ModulesColumns.TABLE_NAME, projection, where, whereArgs, null, null, null, "1");
-        if (!c.moveToFirst()) {
-            c.close();
-            return null;
-        }
-
-        long moduleId = c.getLong(c.getColumnIndexOrThrow(ModulesColumns._ID));
-        long repoId = c.getLong(c.getColumnIndexOrThrow(ModulesColumns.REPO_ID));
-
-        Module mod = new Module(mRepoLoader.getRepository(repoId));
-        mod.packageName = c.getString(c.getColumnIndexOrThrow(ModulesColumns.PKGNAME));
-        mod.name = c.getString(c.getColumnIndexOrThrow(ModulesColumns.TITLE));
-        mod.summary = c.getString(c.getColumnIndexOrThrow(ModulesColumns.SUMMARY));
-        mod.description = c.getString(c.getColumnIndexOrThrow(ModulesColumns.DESCRIPTION));
-        mod.descriptionIsHtml = c.getInt(c.getColumnIndexOrThrow(ModulesColumns.DESCRIPTION_IS_HTML)) > 0;
-        mod.author = c.getString(c.getColumnIndexOrThrow(ModulesColumns.AUTHOR));
-        mod.support = c.getString(c.getColumnIndexOrThrow(ModulesColumns.SUPPORT));
-        mod.created = c.getLong(c.getColumnIndexOrThrow(ModulesColumns.CREATED));
-        mod.updated = c.getLong(c.getColumnIndexOrThrow(ModulesColumns.UPDATED));
-
-        c.close();
-
-        // Versions
-        projection = new String[]{ModuleVersionsColumns.NAME,
-                ModuleVersionsColumns.CODE, ModuleVersionsColumns.DOWNLOAD_LINK,
-                ModuleVersionsColumns.MD5SUM, ModuleVersionsColumns.CHANGELOG,
-                ModuleVersionsColumns.CHANGELOG_IS_HTML,
-                ModuleVersionsColumns.RELTYPE,
-                ModuleVersionsColumns.UPLOADED,};
-
-        where = ModuleVersionsColumns.MODULE_ID + " = ?";
-        whereArgs = new String[]{Long.toString(moduleId)};
-
-        c = mDb.query(ModuleVersionsColumns.TABLE_NAME, projection, where,
-                whereArgs, null, null, null);
-        while (c.moveToNext()) {
-            ModuleVersion version = new ModuleVersion(mod);
-            version.name = c.getString(c.getColumnIndexOrThrow(ModuleVersionsColumns.NAME));
-            version.code = c.getInt(c.getColumnIndexOrThrow(ModuleVersionsColumns.CODE));
-            version.downloadLink = c.getString(c.getColumnIndexOrThrow(ModuleVersionsColumns.DOWNLOAD_LINK));
-            version.md5sum = c.getString(c.getColumnIndexOrThrow(ModuleVersionsColumns.MD5SUM));
-            version.changelog = c.getString(c.getColumnIndexOrThrow(ModuleVersionsColumns.CHANGELOG));
-            version.changelogIsHtml = c.getInt(c.getColumnIndexOrThrow(ModuleVersionsColumns.CHANGELOG_IS_HTML)) > 0;
-            version.relType = ReleaseType.fromOrdinal(c.getInt(c.getColumnIndexOrThrow(ModuleVersionsColumns.RELTYPE)));
-            version.uploaded = c.getLong(c.getColumnIndexOrThrow(ModuleVersionsColumns.UPLOADED));
-            mod.versions.add(version);
+    /**
+     * Marks one module per package name as preferred. If a package is
+     * available in multiple repositories, the copy from the repository with
+     * the highest priority wins, then the one with the highest latest version
+     * and finally the most recently updated one.
+     *
+     * @return the number of modules whose preferred state has changed
+     */
+    public static int resolvePreferredModules() {
+        long start = RepoDbStats.start();
+        SQLiteStatement statement = mDb.compileStatement(RepoDbDefinitions.SQL_RESOLVE_PREFERRED_MODULES);
+        try {
+            int changed = statement.executeUpdateDelete();
+            RepoDbStats.record(RepoDbStats.OP_RESOLVE_PREFERRED, start, changed);
+            return changed;
+        } finally {
+            statement.close();
         }
-        c.close();
-
-        // MoreInfo
-        projection = new String[]{MoreInfoColumns.LABEL, MoreInfoColumns.VALUE,};
-
-        where = MoreInfoColumns.MODULE_ID + " = ?";
-        whereArgs = new String[]{Long.toString(moduleId)};
+    }
 
-        c = mDb.query(MoreInfoColumns.TABLE_NAME, projection, where, whereArgs, null, null, MoreInfoColumns._ID);
-        while (c.moveToNext()) {
-            String label = c
-                    .getString(c.getColumnIndexOrThrow(MoreInfoColumns.LABEL));
-            String value = c
-                    .getString(c.getColumnIndexOrThrow(MoreInfoColumns.VALUE));
-            mod.moreInfo.add(new Pair<String, String>(label, value));
+    public static Module getModuleByPackageName(String packageName) {
+        // The module, its versions and more info are read in a single pass.
+        // Each row starts with its kind and position, the other columns
+        // depend on the kind.
+        String moduleId = "(SELECT " + ModulesColumns._ID + " FROM " + ModulesColumns.TABLE_NAME
+                + " WHERE " + ModulesColumns.PREFERRED + " = 1 AND " + ModulesColumns.PKGNAME + " = ? LIMIT 1)";
+        String sql = "SELECT " + LOADER_KIND_MODULE + " AS kind, 0 AS seq, "
+                + ModulesColumns.REPO_ID + ", " + ModulesColumns.PKGNAME + ", "
+                + ModulesColumns.TITLE + ", " + ModulesColumns.SUMMARY + ", "
+                + ModulesColumns.DESCRIPTION + ", " + ModulesColumns.DESCRIPTION_IS_HTML + ", "
+                + ModulesColumns.AUTHOR + ", " + ModulesColumns.SUPPORT + ", "
+                + ModulesColumns.CREATED + ", " + ModulesColumns.UPDATED
+                + " FROM " + ModulesColumns.TABLE_NAME
+                + " WHERE " + ModulesColumns._ID + " = " + moduleId
+                + " UNION ALL SELECT " + LOADER_KIND_VERSION + ", " + ModuleVersionsColumns._ID + ", "
+                + ModuleVersionsColumns.NAME + ", " + ModuleVersionsColumns.CODE + ", "
+                + ModuleVersionsColumns.DOWNLOAD_LINK + ", " + ModuleVersionsColumns.MD5SUM + ", "
+                + ModuleVersionsColumns.CHANGELOG + ", " + ModuleVersionsColumns.CHANGELOG_IS_HTML + ", "
+                + ModuleVersionsColumns.RELTYPE + ", " + ModuleVersionsColumns.UPLOADED + ", NULL, NULL"
+                + " FROM " + ModuleVersionsColumns.TABLE_NAME
+                + " WHERE " + ModuleVersionsColumns.MODULE_ID + " = " + moduleId
+                + " UNION ALL SELECT " + LOADER_KIND_MORE_INFO + ", " + MoreInfoColumns._ID + ", "
+                + MoreInfoColumns.LABEL + ", " + MoreInfoColumns.VALUE + ", NULL, NULL, NULL, NULL, NULL, NULL, NULL, NULL"
+                + " FROM " + MoreInfoColumns.TABLE_NAME
+                + " WHERE " + MoreInfoColumns.MODULE_ID + " = " + moduleId
+                + " ORDER BY kind, seq";
+
+        long start = RepoDbStats.start();
+        Cursor c = mReadDb.rawQuery(sql, new String[]{packageName, packageName, packageName});
+        Module mod = null;
+        int rows = 0;
+        try {
+            while (c.moveToNext()) {
+                rows++;
+                switch (c.getInt(0)) {
+                    case LOADER_KIND_MODULE:
+                        mod = new Module(mRepoLoader.getRepository(c.getLong(2)));
+                        mod.packageName = c.getString(3);
+                        mod.name = c.getString(4);
+                        mod.summary = c.getString(5);
+                        mod.description = CompressedText.read(c, 6);
+                        mod.descriptionIsHtml = c.getInt(7) > 0;
+                        mod.author = c.getString(8);
+                        mod.support = c.getString(9);
+                        mod.created = c.getLong(10);
+                        mod.updated = c.getLong(11);
+                        break;
+
+                    case LOADER_KIND_VERSION:
+                        ModuleVersion version = new ModuleVersion(mod);
+                        version.name = c.getString(2);
+                        version.code = c.getInt(3);
+                        version.downloadLink = c.getString(4);
+                        version.md5sum = c.getString(5);
+                        version.changelog = CompressedText.read(c, 6);
+                        version.changelogIsHtml = c.getInt(7) > 0;
+                        version.relType = ReleaseType.fromOrdinal(c.getInt(8));
+                        version.uploaded = c.getLong(9);
+                        mod.versions.add(version);
+                        break;
+
+                    case LOADER_KIND_MORE_INFO:
+                        mod.moreInfo.add(new Pair<String, String>(c.getString(2), c.getString(3)));
+                        break;
+                }
+            }
+        } finally {
+            c.close();
         }
-        c.close();
 
+        RepoDbStats.record(RepoDbStats.OP_GET_MODULE, start, rows);
         return mod;
     }
 
@@ -283,33 +283,88 @@ public final class RepoDb extends SQLiteOpenHelper {
         return getString(ModulesColumns.TABLE_NAME, ModulesColumns.PKGNAME, packageName, ModulesColumns.SUPPORT);
     }
 
+    /**
+     * Subquery for the ID of the version with the highest code of the module
+     * in the outer query which doesn't exceed the given release type and can
+     * be downloaded. Like {@link RepoLoader#getLatestVersion}, the first
+     * inserted one wins if several have the same code. It is resolved via
+     * {@link ModuleVersionsColumns#IDX_LATEST}.
+     */
+    /* package */ static String getLatestVersionSubquery(String maxReleaseType) {
+        return "(SELECT v." + ModuleVersionsColumns._ID + " FROM "
+                + ModuleVersionsColumns.TABLE_NAME + " AS v"
+                + " WHERE v." + ModuleVersionsColumns.MODULE_ID + " = "
+                + ModulesColumns.TABLE_NAME + "." + ModulesColumns._ID
+                + " AND v." + ModuleVersionsColumns.RELTYPE + " <= " + maxReleaseType
+                + " AND v." + ModuleVersionsColumns.DOWNLOAD_LINK + " IS NOT NULL"
+                + " ORDER BY v." + ModuleVersionsColumns.CODE + " DESC, v."
+                + ModuleVersionsColumns._ID + " LIMIT 1)";
+    }
+
     public static void updateModuleLatestVersion(String packageName) {
+        long start = RepoDbStats.start();
         int maxShownReleaseType = mRepoLoader.getMaxShownReleaseType(packageName).ordinal();
-        mDb.execSQL(
+        SQLiteStatement update = mDb.compileStatement(
                 "UPDATE " + ModulesColumns.TABLE_NAME + " SET "
-                        + ModulesColumns.LATEST_VERSION + " = (SELECT "
-                        + ModuleVersionsColumns._ID + " FROM "
-                        + ModuleVersionsColumns.TABLE_NAME + " AS v"
-                        + " WHERE v." + ModuleVersionsColumns.MODULE_ID + " = "
-                        + ModulesColumns.TABLE_NAME + "." + ModulesColumns._ID
-                        + " AND reltype <= ? LIMIT 1)" + " WHERE "
-                        + ModulesColumns.PKGNAME + " = ?",
-                new Object[]{maxShownReleaseType, packageName});
+                        + ModulesColumns.LATEST_VERSION + " = "
+                        + getLatestVersionSubquery("?") + " WHERE "
+                        + ModulesColumns.PKGNAME + " = ?");
+        int rows;
+        try {
+            update.bindLong(1, maxShownReleaseType);
+            update.bindString(2, packageName);
+            // One row per repository which contains the module
+            rows = update.executeUpdateDelete();
+        } finally {
+            update.close();
+        }
+        RepoDbStats.record(RepoDbStats.OP_UPDATE_LATEST_VERSION, start, rows);
     }
 
     public static void updateAllModulesLatestVersion() {
+        long start = RepoDbStats.start();
+        int rows;
         mDb.beginTransaction();
         try {
-            String[] projection = new String[]{ModulesColumns.PKGNAME};
-            Cursor c = mDb.query(true, ModulesColumns.TABLE_NAME, projection, null, null, null, null, null, null);
-            while (c.moveToNext()) {
-                updateModuleLatestVersion(c.getString(0));
+            // Load the per-package overrides, so that one statement can
+            // resolve the effective release type of all modules
+            mDb.delete(ReleaseTypeOverridesColumns.TABLE_NAME, null, null);
+            SQLiteStatement insertOverride = mDb.compileStatement("INSERT INTO "
+                    + ReleaseTypeOverridesColumns.TABLE_NAME + " ("
+                    + ReleaseTypeOverridesColumns.PKGNAME + ", "
+                    + ReleaseTypeOverridesColumns.RELTYPE + ") VALUES (?, ?)");
+            for (Map.Entry<String, ReleaseType> override : mRepoLoader.getReleaseTypesLocal().entrySet()) {
+                insertOverride.bindString(1, override.getKey());
+                insertOverride.bindLong(2, override.getValue().ordinal());
+                insertOverride.executeInsert();
             }
-            c.close();
+            insertOverride.close();
+
+            String maxReleaseType = "IFNULL((SELECT o." + ReleaseTypeOverridesColumns.RELTYPE
+                    + " FROM " + ReleaseTypeOverridesColumns.TABLE_NAME + " AS o"
+                    + " WHERE o." + ReleaseTypeOverridesColumns.PKGNAME + " = "
+                    + ModulesColumns.TABLE_NAME + "." + ModulesColumns.PKGNAME + "), ?)";
+            // Only rows whose latest version changes are written, so the
+            // number of updated rows is the number of changed modules
+            String latestVersion = getLatestVersionSubquery(maxReleaseType);
+            SQLiteStatement update = mDb.compileStatement(
+                    "UPDATE " + ModulesColumns.TABLE_NAME + " SET "
+                            + ModulesColumns.LATEST_VERSION + " = " + latestVersion
+                            + " WHERE " + ModulesColumns.LATEST_VERSION + " IS NOT " + latestVersion);
+            try {
+                long globalReleaseType = mRepoLoader.getReleaseTypeGlobal().ordinal();
+                update.bindLong(1, globalReleaseType);
+                update.bindLong(2, globalReleaseType);
+                rows = update.executeUpdateDelete();
+            } finally {
+                update.close();
+            }
+
             mDb.setTransactionSuccessful();
         } finally {
             mDb.endTransaction();
         }
+        RepoDbStats.record(RepoDbStats.OP_UPDATE_ALL_LATEST_VERSIONS, start, rows);
     }
 
     public static long insertInstalledModule(InstalledModule installed) {
@@ -324,89 +379,246 @@ public final class RepoDb extends SQLiteOpenHelper {
         mDb.delete(InstalledModulesColumns.TABLE_NAME, InstalledModulesColumns.PKGNAME + " = ?", new String[]{packageName});
     }
 
+    public static Cursor queryInstalledModules() {
+        return mDb.query(InstalledModulesColumns.TABLE_NAME, null, null, null, null, null, null);
+    }
+
     public static void deleteAllInstalledModules() {
         mDb.delete(InstalledModulesColumns.TABLE_NAME, null, null);
     }
 
-    public static Cursor queryModuleOverview(int sortingOrder,
-                                             CharSequence filterText) {
-        // Columns
-        String[] projection = new String[]{"m." + ModulesColumns._ID,
-                "m." + ModulesColumns.PKGNAME, "m." + ModulesColumns.TITLE,
-                "m." + ModulesColumns.SUMMARY, "m." + ModulesColumns.CREATED,
-                "m." + ModulesColumns.UPDATED,
-
-                "v." + ModuleVersionsColumns.NAME + " AS " + OverviewColumns.LATEST_VERSION, "i." + InstalledModulesColumns.VERSION_NAME + " AS " + OverviewColumns.INSTALLED_VERSION,
-
-                "(CASE WHEN m." + ModulesColumns.PKGNAME + " = '" + ModuleUtil.getInstance().getFrameworkPackageName() + "' THEN 1 ELSE 0 END) AS " + OverviewColumns.IS_FRAMEWORK,
+    public static Cursor queryPackageSnapshot() {
+        return mDb.query(PackageSnapshotColumns.TABLE_NAME, null, null, null, null, null, null);
+    }
 
-                "(CASE WHEN i." + InstalledModulesColumns.VERSION_NAME + " IS NOT NULL" + " THEN 1 ELSE 0 END) AS " + OverviewColumns.IS_INSTALLED,
+    public static void updatePackageSnapshot(String packageName, int versionCode,
+                                             long lastUpdateTime, boolean enabled, boolean isModule) {
+        ContentValues values = new ContentValues();
+        values.put(PackageSnapshotColumns.PKGNAME, packageName);
+        values.put(PackageSnapshotColumns.VERSION_CODE, versionCode);
+        values.put(PackageSnapshotColumns.LAST_UPDATE_TIME, lastUpdateTime);
+        values.put(PackageSnapshotColumns.ENABLED, enabled ? 1 : 0);
+        values.put(PackageSnapshotColumns.IS_MODULE, isModule ? 1 : 0);
+        mDb.insertOrThrow(PackageSnapshotColumns.TABLE_NAME, null, values);
+    }
 
-                "(CASE WHEN v." + ModuleVersionsColumns.CODE + " > " + InstalledModulesColumns.VERSION_CODE + " THEN 1 ELSE 0 END) AS " + OverviewColumns.HAS_UPDATE,};
+    public static void deletePackageSnapshot(String packageName) {
+        mDb.delete(PackageSnapshotColumns.TABLE_NAME, PackageSnapshotColumns.PKGNAME + " = ?", new String[]{packageName});
+    }
 
-        // Conditions
-        String where = ModulesColumns.PREFERRED + " = 1";
+    /**
+     * Returns one page of the module overview, starting after the given row
+     * (or at the beginning if it is {@code null}). The page boundary is
+     * expressed with the sort keys of that row (keyset pagination), so each
+     * page is a short index range scan no matter how far the list has been
+     * scrolled. The query is executed before returning, so this must not be
+     * called on the UI thread.
+     */
+    public static Cursor queryModuleOverview(int sortingOrder,
+                                             CharSequence filterText, OverviewPageKey after,
+                                             CancellationSignal cancellationSignal) {
+        // Columns
+        String[] projection = new String[]{ModuleOverviewColumns._ID,
+                ModuleOverviewColumns.PKGNAME, ModuleOverviewColumns.TITLE,
+                ModuleOverviewColumns.SUMMARY, ModuleOverviewColumns.CREATED,
+                ModuleOverviewColumns.UPDATED, ModuleOverviewColumns.LATEST_VERSION,
+                ModuleOverviewColumns.INSTALLED_VERSION, ModuleOverviewColumns.IS_FRAMEWORK,
+                ModuleOverviewColumns.IS_INSTALLED, ModuleOverviewColumns.HAS_UPDATE,
+                ModuleOverviewColumns.STATUS_RANK};
+
+        // Conditions (the overview only contains preferred modules)
+        String where = null;
         String whereArgs[] = null;
-        if (!TextUtils.isEmpty(filterText)) {
-            where += " AND (m." + ModulesColumns.TITLE + " LIKE ?" + " OR m." + ModulesColumns.SUMMARY + " LIKE ?" + " OR m." + ModulesColumns.DESCRIPTION + " LIKE ?" + " OR m." + ModulesColumns.AUTHOR + " LIKE ?)";
-            String filterTextArg = "%" + filterText + "%";
-            whereArgs = new String[]{filterTextArg, filterTextArg, filterTextArg, filterTextArg};
+        String matchQuery = buildMatchQuery(filterText, null);
+        if (matchQuery != null) {
+            String idsMatching = ModuleOverviewColumns._ID + " IN (SELECT "
+                    + ModulesFtsColumns.DOCID + " FROM " + ModulesFtsColumns.TABLE_NAME
+                    + " WHERE " + ModulesFtsColumns.TABLE_NAME + " MATCH ?)";
+
+            // Modules with all terms in their title come first within each section
+            projection = Arrays.copyOf(projection, projection.length + 1);
+            projection[projection.length - 1] = "(CASE WHEN " + idsMatching + " THEN 1 ELSE 0 END) AS " + OverviewColumns.SEARCH_RANK;
+            where = idsMatching;
+            whereArgs = new String[]{buildMatchQuery(filterText, ModulesFtsColumns.TITLE), matchQuery};
         }
 
-        // Sorting order
-        StringBuilder sbOrder = new StringBuilder();
+        // Sorting order, matching the indexes of the overview table. The ID
+        // makes it unique, which is required for the paging.
+        List<String> sortKeys = new ArrayList<>();
+        List<Boolean> sortDescending = new ArrayList<>();
+        List<String> afterValues = new ArrayList<>();
         if (sortingOrder == SORT_CREATED) {
-            sbOrder.append(OverviewColumns.CREATED);
-            sbOrder.append(" DESC,");
+            sortKeys.add(ModuleOverviewColumns.CREATED);
+            sortDescending.add(true);
+            afterValues.add(after != null ? Long.toString(after.created) : null);
         } else if (sortingOrder == SORT_UPDATED) {
-            sbOrder.append(OverviewColumns.UPDATED);
-            sbOrder.append(" DESC,");
-        }
-        sbOrder.append(OverviewColumns.IS_FRAMEWORK);
-        sbOrder.append(" DESC, ");
-        sbOrder.append(OverviewColumns.HAS_UPDATE);
-        sbOrder.append(" DESC, ");
-        sbOrder.append(OverviewColumns.IS_INSTALLED);
-        sbOrder.append(" DESC, ");
-        sbOrder.append("m.");
-        sbOrder.append(OverviewColumns.TITLE);
-        sbOrder.append(" COLLATE NOCASE, ");
-        sbOrder.append("m.");
-        sbOrder.append(OverviewColumns.PKGNAME);
+            sortKeys.add(ModuleOverviewColumns.UPDATED);
+            sortDescending.add(true);
+            afterValues.add(after != null ? Long.toString(after.updated) : null);
+        }
+        sortKeys.add(ModuleOverviewColumns.STATUS_RANK);
+        sortDescending.add(true);
+        afterValues.add(after != null ? Long.toString(after.statusRank) : null);
+        if (matchQuery != null) {
+            sortKeys.add(OverviewColumns.SEARCH_RANK);
+            sortDescending.add(true);
+            afterValues.add(after != null ? Long.toString(after.searchRank) : null);
+        }
+        sortKeys.add(ModuleOverviewColumns.TITLE + " COLLATE NOCASE");
+        sortDescending.add(false);
+        afterValues.add(after != null ? DatabaseUtils.sqlEscapeString(after.title) : null);
+        sortKeys.add(ModuleOverviewColumns.PKGNAME);
+        sortDescending.add(false);
+        afterValues.add(after != null ? DatabaseUtils.sqlEscapeString(after.packageName) : null);
+        sortKeys.add(ModuleOverviewColumns._ID);
+        sortDescending.add(false);
+        afterValues.add(after != null ? Long.toString(after.id) : null);
+
+        StringBuilder sbOrder = new StringBuilder();
+        for (int i = 0; i < sortKeys.size(); i++) {
+            if (i > 0)
+                sbOrder.append(", ");
+            sbOrder.append(sortKeys.get(i));
+            if (sortDescending.get(i))
+                sbOrder.append(" DESC");
+        }
+
+        if (after != null) {
+            String keyset = buildKeysetPredicate(sortKeys, sortDescending, afterValues);
+            where = (where != null) ? where + " AND " + keyset : keyset;
+        }
 
         // Query
-        Cursor c = mDb.query(ModulesColumns.TABLE_NAME + " AS m" + " LEFT JOIN "
-                + ModuleVersionsColumns.TABLE_NAME + " AS v" + " ON v."
-                + ModuleVersionsColumns._ID + " = m."
-                + ModulesColumns.LATEST_VERSION + " LEFT JOIN "
-                + InstalledModulesColumns.TABLE_NAME + " AS i"
-                + " ON i." + InstalledModulesColumns.PKGNAME + " = m."
-                + ModulesColumns.PKGNAME, projection, where, whereArgs, null, null, sbOrder.toString());
+        long start = RepoDbStats.start();
+        Cursor c = mReadDb.query(false, ModuleOverviewColumns.TABLE_NAME, projection, where, whereArgs,
+                null, null, sbOrder.toString(), Integer.toString(OVERVIEW_PAGE_SIZE), cancellationSignal);
+        try {
+            // Executes the query
+            RepoDbStats.record(RepoDbStats.OP_QUERY_OVERVIEW, start, c.getCount());
 
-        // Cache column indexes
-        OverviewColumnsIndexes.fillFromCursor(c);
+            // Cache column indexes
+            OverviewColumnsIndexes.fillFromCursor(c);
+        } catch (RuntimeException e) {
+            c.close();
+            throw e;
+        }
 
         return c;
     }
 
+    /**
+     * Builds a condition for the rows which come after the given values in
+     * the given lexicographic order. It is written as
+     * {@code k1 >= a1 AND (k1 > a1 OR (k1 = a1 AND ...))}, so that SQLite can
+     * still use a range scan on the first key.
+     */
+    private static String buildKeysetPredicate(List<String> keys, List<Boolean> descending, List<String> values) {
+        String predicate = null;
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            String key = keys.get(i);
+            String value = values.get(i);
+            String after = key + (descending.get(i) ? " < " : " > ") + value;
+            if (predicate == null)
+                predicate = after;
+            else
+                predicate = "(" + after + " OR (" + key + " = " + value + " AND " + predicate + "))";
+        }
+        return keys.get(0) + (descending.get(0) ? " <= " : " >= ") + values.get(0) + " AND " + predicate;
+    }
+
+    /**
+     * Converts free text into an FTS prefix query which requires all words,
+     * optionally restricted to one column. Returns {@code null} if the text
+     * doesn't contain any searchable words.
+     */
+    private static String buildMatchQuery(CharSequence filterText, String column) {
+        if (TextUtils.isEmpty(filterText))
+            return null;
+
+        StringBuilder sb = new StringBuilder();
+        for (String token : filterText.toString().split("[^\\p{L}\\p{N}]+")) {
+            if (token.isEmpty())
+                continue;
+
+            if (sb.length() > 0)
+                sb.append(' ');
+            if (column != null)
+                sb.append(column).append(':');
+
+            // Lower-case ASCII like the tokenizer does, which also avoids
+            // that words like "OR" are interpreted as operators
+            for (int i = 0; i < token.length(); i++) {
+                char c = token.charAt(i);
+                sb.append((c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c);
+            }
+            sb.append('*');
+        }
+        return (sb.length() > 0) ? sb.toString() : null;
+    }
+
     public static String getFrameworkUpdateVersion() {
-        return getFirstUpdate(true);
+        return getUpdateSummary().frameworkUpdateVersion;
     }
 
     public static boolean hasModuleUpdates() {
-        return getFirstUpdate(false) != null;
+        return getUpdateSummary().moduleUpdates > 0;
     }
 
-    private static String getFirstUpdate(boolean framework) {
-        String[] projection = new String[]{InstalledModulesUpdatesColumns.LATEST_NAME};
-        String where = ModulesColumns.PKGNAME + (framework ? " = ?" : " != ?");
-        String[] whereArgs = new String[]{ModuleUtil.getInstance().getFrameworkPackageName()};
-        Cursor c = mDb.query(InstalledModulesUpdatesColumns.VIEW_NAME, projection, where, whereArgs, null, null, null, "1");
-        String latestVersion = null;
-        if (c.moveToFirst())
-            latestVersion = c.getString(c.getColumnIndexOrThrow(InstalledModulesUpdatesColumns.LATEST_NAME));
-        c.close();
-        return latestVersion;
+    /**
+     * Returns the number of available updates. They are counted by triggers
+     * whenever the overview changes, so this only reads a single row.
+     */
+    public static UpdateSummary getUpdateSummary() {
+        Cursor c = mReadDb.query(UpdateSummaryColumns.TABLE_NAME,
+                new String[]{UpdateSummaryColumns.MODULE_UPDATES, UpdateSummaryColumns.FRAMEWORK_UPDATE},
+                null, null, null, null, null);
+        try {
+            if (c.moveToFirst())
+                return new UpdateSummary(c.getInt(0), c.getString(1));
+            else
+                return new UpdateSummary(0, null);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Records a finished sync and drops the oldest runs beyond
+     * {@link SyncHistoryColumns#MAX_ROWS}.
+     */
+    public static void insertSyncRun(SyncRun run) {
+        ContentValues values = new ContentValues();
+        values.put(SyncHistoryColumns.STARTED, run.started);
+        values.put(SyncHistoryColumns.TOTAL_TIME, run.totalTime);
+        values.put(SyncHistoryColumns.REPOSITORIES, run.repositories);
+        values.put(SyncHistoryColumns.NOT_MODIFIED, run.notModified);
+        values.put(SyncHistoryColumns.FAILED, run.failed);
+        values.put(SyncHistoryColumns.HTTP_STATUSES, run.httpStatuses.toString().trim());
+        values.put(SyncHistoryColumns.DOWNLOAD_BYTES, run.downloadBytes);
+        values.put(SyncHistoryColumns.DOWNLOAD_TIME, run.downloadTime);
+        values.put(SyncHistoryColumns.DECOMPRESS_TIME, run.decompressTime);
+        values.put(SyncHistoryColumns.PARSE_TIME, run.parseTime);
+        values.put(SyncHistoryColumns.WRITE_TIME, run.writeTime);
+        values.put(SyncHistoryColumns.INSERTED, run.inserted);
+        values.put(SyncHistoryColumns.UPDATED, run.updated);
+        values.put(SyncHistoryColumns.DELETED, run.deleted);
+
+        mDb.beginTransaction();
+        try {
+            mDb.insertOrThrow(SyncHistoryColumns.TABLE_NAME, null, values);
+            mDb.execSQL(RepoDbDefinitions.SQL_TRIM_SYNC_HISTORY);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * @return all recorded syncs, most recent first
+     */
+    public static Cursor querySyncHistory() {
+        return mReadDb.query(SyncHistoryColumns.TABLE_NAME, null, null, null, null, null,
+                SyncHistoryColumns._ID + " DESC");
     }
 
     @Override
@@ -414,34 +626,576 @@ public final class RepoDb extends SQLiteOpenHelper {
         db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_REPOSITORIES);
         db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_MODULES);
         db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_MODULE_VERSIONS);
-        db.execSQL(RepoDbDefinitions.SQL_CREATE_INDEX_MODULE_VERSIONS_MODULE_ID);
+        db.execSQL(RepoDbDefinitions.SQL_CREATE_INDEX_MODULE_VERSIONS_LATEST);
         db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_MORE_INFO);
+        db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_MODULES_FTS);
+        db.execSQL(RepoDbDefinitions.SQL_CREATE_TRIGGER_MODULES_FTS_DELETE);
+        db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_PACKAGE_SNAPSHOT);
+        db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_INSTALLED_MODULES);
+        db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_MODULE_OVERVIEW);
+        db.execSQL(RepoDbDefinitions.SQL_CREATE_INDEX_MODULE_OVERVIEW_STATUS);
+        db.execSQL(RepoDbDefinitions.SQL_CREATE_INDEX_MODULE_OVERVIEW_CREATED);
+        db.execSQL(RepoDbDefinitions.SQL_CREATE_INDEX_MODULE_OVERVIEW_UPDATED);
+        for (String trigger : RepoDbDefinitions.getSqlCreateTriggersModuleOverview(mFrameworkPackageName)) {
+            db.execSQL(trigger);
+        }
+        db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_UPDATE_SUMMARY);
+        db.execSQL(RepoDbDefinitions.SQL_INSERT_UPDATE_SUMMARY);
+        db.execSQL(RepoDbDefinitions.SQL_CREATE_TRIGGER_UPDATE_SUMMARY_INSERT);
+        db.execSQL(RepoDbDefinitions.SQL_CREATE_TRIGGER_UPDATE_SUMMARY_DELETE);
+        db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_SYNC_HISTORY);
 
         mRepoLoader.clear(false);
     }
 
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Also fire the delete triggers for rows replaced on conflict
+        db.execSQL("PRAGMA recursive_triggers=ON");
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        // Only enabled after a possible upgrade, as rebuilding a table would
+        // otherwise cascade to the referencing rows
+        if (!db.isReadOnly())
+            db.setForeignKeyConstraintsEnabled(true);
+    }
+
     private void createTempTables(SQLiteDatabase db) {
-        db.execSQL(RepoDbDefinitions.SQL_CREATE_TEMP_TABLE_INSTALLED_MODULES);
-        db.execSQL(RepoDbDefinitions.SQL_CREATE_TEMP_VIEW_INSTALLED_MODULES_UPDATES);
+        db.execSQL(RepoDbDefinitions.SQL_CREATE_TEMP_TABLE_RELEASE_TYPE_OVERRIDES);
+    }
+
+    /**
+     * Recalculates the whole module overview. It is usually kept up-to-date
+     * by triggers, also for the installed modules, which {@link ModuleUtil}
+     * compares with the stored ones when the app starts.
+     */
+    private static void refreshModuleOverview(SQLiteDatabase db, String frameworkPackageName) {
+        db.beginTransaction();
+        try {
+            db.execSQL(RepoDbDefinitions.SQL_DELETE_MODULE_OVERVIEW);
+            db.execSQL(RepoDbDefinitions.getSqlRefreshModuleOverview(frameworkPackageName, "1"));
+            db.execSQL(RepoDbDefinitions.SQL_RECALCULATE_UPDATE_SUMMARY);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < RepoDbDefinitions.DATABASE_VERSION_MIN_MIGRATION) {
+            recreate(db);
+            return;
+        }
+
+        Log.i(XposedApp.TAG, "RepoDb -> migrating from version " + oldVersion + " to " + newVersion);
+        boolean rebuildModules = false;
+        boolean refreshOverview = false;
+        switch (oldVersion) {
+            case 4:
+                // Latest version reference became deferrable, which requires
+                // a new table. Done last, so it gets the final definition.
+                rebuildModules = true;
+            case 5:
+                // The search index is created for version 13
+            case 6:
+                // The index for the latest version is created for version 15
+                db.execSQL("DROP INDEX IF EXISTS module_versions_module_id_idx");
+            case 7:
+                db.execSQL("ALTER TABLE " + ModulesColumns.TABLE_NAME + " ADD COLUMN "
+                        + ModulesColumns.CONTENT_HASH + " BLOB");
+            case 8:
+                db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_PACKAGE_SNAPSHOT);
+            case 9:
+                // Used to be temporary tables, recreated for every process
+                db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_INSTALLED_MODULES);
+                db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_MODULE_OVERVIEW);
+                db.execSQL(RepoDbDefinitions.SQL_CREATE_INDEX_MODULE_OVERVIEW_STATUS);
+                db.execSQL(RepoDbDefinitions.SQL_CREATE_INDEX_MODULE_OVERVIEW_CREATED);
+                db.execSQL(RepoDbDefinitions.SQL_CREATE_INDEX_MODULE_OVERVIEW_UPDATED);
+                for (String trigger : RepoDbDefinitions.getSqlCreateTriggersModuleOverview(mFrameworkPackageName)) {
+                    db.execSQL(trigger);
+                }
+                // The triggers only cover changes from now on
+                refreshOverview = true;
+            case 10:
+                db.execSQL("DROP VIEW IF EXISTS installed_modules_updates");
+                db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_UPDATE_SUMMARY);
+                db.execSQL(RepoDbDefinitions.SQL_INSERT_UPDATE_SUMMARY);
+                db.execSQL(RepoDbDefinitions.SQL_CREATE_TRIGGER_UPDATE_SUMMARY_INSERT);
+                db.execSQL(RepoDbDefinitions.SQL_CREATE_TRIGGER_UPDATE_SUMMARY_DELETE);
+            case 11:
+                // Repositories were inserted in the configured order, so the
+                // first one gets the highest priority
+                db.execSQL("ALTER TABLE " + RepositoriesColumns.TABLE_NAME + " ADD COLUMN "
+                        + RepositoriesColumns.PRIORITY + " INTEGER NOT NULL DEFAULT 0");
+                db.execSQL("UPDATE " + RepositoriesColumns.TABLE_NAME + " SET "
+                        + RepositoriesColumns.PRIORITY + " = (SELECT COUNT(*) FROM "
+                        + RepositoriesColumns.TABLE_NAME + " AS r WHERE r." + RepositoriesColumns._ID
+                        + " >= " + RepositoriesColumns.TABLE_NAME + "." + RepositoriesColumns._ID + ")");
+            case 12:
+                db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_SYNC_HISTORY);
+            case 13:
+                // Descriptions were removed from the search index
+                db.execSQL("DROP TRIGGER IF EXISTS " + ModulesFtsColumns.TRIGGER_DELETE);
+                db.execSQL("DROP TABLE IF EXISTS " + ModulesFtsColumns.TABLE_NAME);
+                db.execSQL(RepoDbDefinitions.SQL_CREATE_TABLE_MODULES_FTS);
+                db.execSQL(RepoDbDefinitions.SQL_CREATE_TRIGGER_MODULES_FTS_DELETE);
+                db.execSQL(RepoDbDefinitions.SQL_POPULATE_MODULES_FTS);
+            case 14:
+                // The release type was removed from the index, so that it
+                // also orders versions with the same code
+                db.execSQL("DROP INDEX IF EXISTS " + ModuleVersionsColumns.IDX_LATEST);
+                db.execSQL(RepoDbDefinitions.SQL_CREATE_INDEX_MODULE_VERSIONS_LATEST);
+                break;
+            default:
+                recreate(db);
+                return;
+        }
+
+        if (rebuildModules)
+            rebuildModulesTable(db);
+        if (refreshOverview)
+            refreshModuleOverview(db, mFrameworkPackageName);
+    }
+
+    /**
+     * Copies the modules into a table with the current definition, in the
+     * order recommended by SQLite: create the new table, copy the rows, drop
+     * the old one and rename the new one. Renaming the old table away instead
+     * would make the references of other tables follow it on SQLite 3.26+.
+     * Foreign keys are not enforced yet, so the versions and more info rows
+     * keep pointing to the modules by ID. The rename fails while triggers
+     * refer to a missing table, so all triggers are dropped before and
+     * recreated afterwards.
+     */
+    private void rebuildModulesTable(SQLiteDatabase db) {
+        List<String> columns = new ArrayList<>();
+        Cursor c = db.rawQuery("PRAGMA table_info(" + ModulesColumns.TABLE_NAME + ")", null);
+        try {
+            int nameColumn = c.getColumnIndexOrThrow("name");
+            while (c.moveToNext()) {
+                columns.add(c.getString(nameColumn));
+            }
+        } finally {
+            c.close();
+        }
+
+        Map<String, String> triggers = new LinkedHashMap<>();
+        c = db.rawQuery("SELECT name, sql FROM sqlite_master WHERE type = 'trigger'", null);
+        try {
+            while (c.moveToNext()) {
+                triggers.put(c.getString(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        for (String trigger : triggers.keySet()) {
+            db.execSQL("DROP TRIGGER " + trigger);
+        }
+
+        String columnList = TextUtils.join(", ", columns);
+        db.execSQL(RepoDbDefinitions.getSqlCreateTableModules("modules_new"));
+        db.execSQL("INSERT INTO modules_new (" + columnList + ") SELECT " + columnList
+                + " FROM " + ModulesColumns.TABLE_NAME);
+        db.execSQL("DROP TABLE " + ModulesColumns.TABLE_NAME);
+        db.execSQL("ALTER TABLE modules_new RENAME TO " + ModulesColumns.TABLE_NAME);
+
+        for (String trigger : triggers.values()) {
+            db.execSQL(trigger);
+        }
+    }
+
+    private void recreate(SQLiteDatabase db) {
         // This is only a cache, so simply drop & recreate the tables
         db.execSQL("DROP TABLE IF EXISTS " + RepositoriesColumns.TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + ModulesColumns.TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + ModuleVersionsColumns.TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + MoreInfoColumns.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + ModulesFtsColumns.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + PackageSnapshotColumns.TABLE_NAME);
 
         db.execSQL("DROP TABLE IF EXISTS " + InstalledModulesColumns.TABLE_NAME);
-        db.execSQL("DROP VIEW IF EXISTS " + InstalledModulesUpdatesColumns.VIEW_NAME);
+        db.execSQL("DROP VIEW IF EXISTS installed_modules_updates");
+        db.execSQL("DROP TABLE IF EXISTS " + ModuleOverviewColumns.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + UpdateSummaryColumns.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + SyncHistoryColumns.TABLE_NAME);
 
         onCreate(db);
     }
 
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        // The newer schema is unknown, so start over
+        recreate(db);
+    }
+
+    public static class BulkWriter {
+        public static final int RESULT_UNCHANGED = 0;
+        public static final int RESULT_INSERTED = 1;
+        public static final int RESULT_UPDATED = 2;
+
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        private final SQLiteStatement mInsertModule;
+        private final SQLiteStatement mUpdateModule;
+        private final SQLiteStatement mDeleteModule;
+        private final SQLiteStatement mInsertVersion;
+        private final SQLiteStatement mDeleteVersions;
+        private final SQLiteStatement mInsertMoreInfo;
+        private final SQLiteStatement mDeleteMoreInfo;
+        private final SQLiteStatement mInsertFts;
+        private final SQLiteStatement mDeleteFts;
+        private final SQLiteStatement mMaxVersionId;
+        private final MessageDigest mDigest;
+        private final CompressedText mCompressor = new CompressedText();
+
+        // Modules of the repository which is currently being compared
+        private long mDiffRepoId = -1;
+        private Map<String, ExistingModule> mDiffModules = null;
+
+        private BulkWriter() {
+            // The first ten columns are shared with mUpdateModule
+            mInsertModule = mDb.compileStatement("INSERT INTO " + ModulesColumns.TABLE_NAME + " ("
+                    + ModulesColumns.TITLE + ", " + ModulesColumns.SUMMARY + ", "
+                    + ModulesColumns.DESCRIPTION + ", " + ModulesColumns.DESCRIPTION_IS_HTML + ", "
+                    + ModulesColumns.AUTHOR + ", " + ModulesColumns.SUPPORT + ", "
+                    + ModulesColumns.CREATED + ", " + ModulesColumns.UPDATED + ", "
+                    + ModulesColumns.LATEST_VERSION + ", " + ModulesColumns.CONTENT_HASH + ", "
+                    + ModulesColumns.REPO_ID + ", " + ModulesColumns.PKGNAME
+                    + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            mUpdateModule = mDb.compileStatement("UPDATE " + ModulesColumns.TABLE_NAME + " SET "
+                    + ModulesColumns.TITLE + " = ?, " + ModulesColumns.SUMMARY + " = ?, "
+                    + ModulesColumns.DESCRIPTION + " = ?, " + ModulesColumns.DESCRIPTION_IS_HTML + " = ?, "
+                    + ModulesColumns.AUTHOR + " = ?, " + ModulesColumns.SUPPORT + " = ?, "
+                    + ModulesColumns.CREATED + " = ?, " + ModulesColumns.UPDATED + " = ?, "
+                    + ModulesColumns.LATEST_VERSION + " = ?, " + ModulesColumns.CONTENT_HASH + " = ?"
+                    + " WHERE " + ModulesColumns._ID + " = ?");
+            mDeleteModule = mDb.compileStatement("DELETE FROM " + ModulesColumns.TABLE_NAME
+                    + " WHERE " + ModulesColumns._ID + " = ?");
+            mInsertVersion = mDb.compileStatement("INSERT INTO " + ModuleVersionsColumns.TABLE_NAME + " ("
+                    + ModuleVersionsColumns._ID + ", " + ModuleVersionsColumns.MODULE_ID + ", "
+                    + ModuleVersionsColumns.NAME + ", " + ModuleVersionsColumns.CODE + ", "
+                    + ModuleVersionsColumns.DOWNLOAD_LINK + ", " + ModuleVersionsColumns.MD5SUM + ", "
+                    + ModuleVersionsColumns.CHANGELOG + ", " + ModuleVersionsColumns.CHANGELOG_IS_HTML + ", "
+                    + ModuleVersionsColumns.RELTYPE + ", " + ModuleVersionsColumns.UPLOADED
+                    + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            mDeleteVersions = mDb.compileStatement("DELETE FROM " + ModuleVersionsColumns.TABLE_NAME
+                    + " WHERE " + ModuleVersionsColumns.MODULE_ID + " = ?");
+            mInsertMoreInfo = mDb.compileStatement("INSERT INTO " + MoreInfoColumns.TABLE_NAME + " ("
+                    + MoreInfoColumns.MODULE_ID + ", " + MoreInfoColumns.LABEL + ", "
+                    + MoreInfoColumns.VALUE + ") VALUES (?, ?, ?)");
+            mDeleteMoreInfo = mDb.compileStatement("DELETE FROM " + MoreInfoColumns.TABLE_NAME
+                    + " WHERE " + MoreInfoColumns.MODULE_ID + " = ?");
+            mInsertFts = mDb.compileStatement("INSERT INTO " + ModulesFtsColumns.TABLE_NAME + " ("
+                    + ModulesFtsColumns.DOCID + ", " + ModulesFtsColumns.TITLE + ", "
+                    + ModulesFtsColumns.SUMMARY + ", " + ModulesFtsColumns.AUTHOR + ") VALUES (?, ?, ?, ?)");
+            mDeleteFts = mDb.compileStatement("DELETE FROM " + ModulesFtsColumns.TABLE_NAME
+                    + " WHERE " + ModulesFtsColumns.DOCID + " = ?");
+            mMaxVersionId = mDb.compileStatement("SELECT IFNULL(MAX(" + ModuleVersionsColumns._ID
+                    + "), 0) FROM " + ModuleVersionsColumns.TABLE_NAME);
+
+            try {
+                mDigest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+            if (value != null)
+                statement.bindString(index, value);
+            else
+                statement.bindNull(index);
+        }
+
+        /**
+         * Inserts the module, replacing any module with the same package name
+         * in this repository.
+         */
+        public long insertModule(long repoId, Module mod) {
+            long start = RepoDbStats.start();
+            long moduleId = insertModule(repoId, mod, computeContentHash(mod));
+            RepoDbStats.record(RepoDbStats.OP_INSERT_MODULE, start, 1 + mod.versions.size() + mod.moreInfo.size());
+            return moduleId;
+        }
+
+        private long insertModule(long repoId, Module mod, byte[] contentHash) {
+            // The version IDs are assigned here, so that the module row can
+            // reference its latest version right away (the foreign key is
+            // only checked on commit)
+            long firstVersionId = mMaxVersionId.simpleQueryForLong() + 1;
+
+            SQLiteStatement s = mInsertModule;
+            bindModule(s, mod, firstVersionId, contentHash);
+            s.bindLong(11, repoId);
+            s.bindString(12, mod.packageName);
+            long moduleId = s.executeInsert();
+
+            insertChildren(moduleId, mod, firstVersionId);
+            return moduleId;
+        }
+
+        private void updateModule(long moduleId, Module mod, byte[] contentHash) {
+            mDeleteVersions.bindLong(1, moduleId);
+            mDeleteVersions.executeUpdateDelete();
+            mDeleteMoreInfo.bindLong(1, moduleId);
+            mDeleteMoreInfo.executeUpdateDelete();
+            mDeleteFts.bindLong(1, moduleId);
+            mDeleteFts.executeUpdateDelete();
+
+            long firstVersionId = mMaxVersionId.simpleQueryForLong() + 1;
+
+            SQLiteStatement s = mUpdateModule;
+            bindModule(s, mod, firstVersionId, contentHash);
+            s.bindLong(11, moduleId);
+            s.executeUpdateDelete();
+
+            insertChildren(moduleId, mod, firstVersionId);
+        }
+
+        private void bindModule(SQLiteStatement s, Module mod, long firstVersionId, byte[] contentHash) {
+            ModuleVersion latestVersion = mRepoLoader.getLatestVersion(mod);
+            int latestIndex = (latestVersion != null) ? mod.versions.indexOf(latestVersion) : -1;
+
+            s.bindString(1, mod.name);
+            bindStringOrNull(s, 2, mod.summary);
+            mCompressor.bind(s, 3, mod.description);
+            s.bindLong(4, mod.descriptionIsHtml ? 1 : 0);
+            bindStringOrNull(s, 5, mod.author);
+            bindStringOrNull(s, 6, mod.support);
+            s.bindLong(7, mod.created);
+            s.bindLong(8, mod.updated);
+            if (latestIndex >= 0)
+                s.bindLong(9, firstVersionId + latestIndex);
+            else
+                s.bindNull(9);
+            s.bindBlob(10, contentHash);
+        }
+
+        private void insertChildren(long moduleId, Module mod, long firstVersionId) {
+            SQLiteStatement s = mInsertVersion;
+            int count = mod.versions.size();
+            for (int i = 0; i < count; i++) {
+                ModuleVersion version = mod.versions.get(i);
+                s.bindLong(1, firstVersionId + i);
+                s.bindLong(2, moduleId);
+                bindStringOrNull(s, 3, version.name);
+                s.bindLong(4, version.code);
+                bindStringOrNull(s, 5, version.downloadLink);
+                bindStringOrNull(s, 6, version.md5sum);
+                mCompressor.bind(s, 7, version.changelog);
+                s.bindLong(8, version.changelogIsHtml ? 1 : 0);
+                s.bindLong(9, version.relType.ordinal());
+                s.bindLong(10, version.uploaded);
+                s.executeInsert();
+            }
+
+            s = mInsertMoreInfo;
+            for (Pair<String, String> moreInfoEntry : mod.moreInfo) {
+                s.bindLong(1, moduleId);
+                bindStringOrNull(s, 2, moreInfoEntry.first);
+                bindStringOrNull(s, 3, moreInfoEntry.second);
+                s.executeInsert();
+            }
+
+            s = mInsertFts;
+            s.bindLong(1, moduleId);
+            s.bindString(2, mod.name);
+            bindStringOrNull(s, 3, mod.summary);
+            bindStringOrNull(s, 4, mod.author);
+            s.executeInsert();
+
+            // TODO Add mod.screenshots
+        }
+
+        /**
+         * Starts comparing a full copy of the repository with the modules
+         * stored for it. Until {@link #finishDiff()} is called,
+         * {@link #applyModule} only writes modules which have changed.
+         */
+        public void beginDiff(long repoId) {
+            mDiffRepoId = repoId;
+            mDiffModules = new HashMap<>();
+
+            Cursor c = mDb.query(ModulesColumns.TABLE_NAME,
+                    new String[]{ModulesColumns._ID, ModulesColumns.PKGNAME, ModulesColumns.CONTENT_HASH},
+                    ModulesColumns.REPO_ID + " = ?", new String[]{Long.toString(repoId)},
+                    null, null, null);
+            while (c.moveToNext()) {
+                mDiffModules.put(c.getString(1), new ExistingModule(c.getLong(0), c.getBlob(2)));
+            }
+            c.close();
+        }
+
+        /**
+         * Inserts the module or updates it in place if it has changed since
+         * the last sync.
+         *
+         * @return one of the {@code RESULT_*} constants
+         */
+        public int applyModule(long repoId, Module mod) {
+            long start = RepoDbStats.start();
+            int result = applyModule(repoId, mod, computeContentHash(mod));
+            int rows = (result != RESULT_UNCHANGED) ? 1 + mod.versions.size() + mod.moreInfo.size() : 0;
+            RepoDbStats.record(RepoDbStats.OP_APPLY_MODULE, start, rows);
+            return result;
+        }
+
+        private int applyModule(long repoId, Module mod, byte[] contentHash) {
+            if (mDiffModules == null || mDiffRepoId != repoId) {
+                insertModule(repoId, mod, contentHash);
+                return RESULT_INSERTED;
+            }
+
+            ExistingModule existing = mDiffModules.remove(mod.packageName);
+            if (existing == null) {
+                insertModule(repoId, mod, contentHash);
+                return RESULT_INSERTED;
+            } else if (Arrays.equals(existing.contentHash, contentHash)) {
+                return RESULT_UNCHANGED;
+            } else {
+                updateModule(existing.id, mod, contentHash);
+                return RESULT_UPDATED;
+            }
+        }
+
+        /**
+         * Deletes all modules which were not part of the repository anymore.
+         *
+         * @return the package names of the deleted modules
+         */
+        public Set<String> finishDiff() {
+            if (mDiffModules == null)
+                return Collections.emptySet();
+
+            for (ExistingModule removed : mDiffModules.values()) {
+                mDeleteModule.bindLong(1, removed.id);
+                mDeleteModule.executeUpdateDelete();
+            }
+
+            Set<String> removedPackages = new HashSet<>(mDiffModules.keySet());
+            mDiffModules = null;
+            mDiffRepoId = -1;
+            return removedPackages;
+        }
+
+        private byte[] computeContentHash(Module mod) {
+            MessageDigest md = mDigest;
+            md.reset();
+            updateDigest(mod.packageName);
+            updateDigest(mod.name);
+            updateDigest(mod.summary);
+            updateDigest(mod.description);
+            updateDigest(mod.descriptionIsHtml ? 1 : 0);
+            updateDigest(mod.author);
+            updateDigest(mod.support);
+            updateDigest(mod.created);
+            updateDigest(mod.updated);
+
+            updateDigest(mod.versions.size());
+            for (ModuleVersion version : mod.versions) {
+                updateDigest(version.name);
+                updateDigest(version.code);
+                updateDigest(version.downloadLink);
+                updateDigest(version.md5sum);
+                updateDigest(version.changelog);
+                updateDigest(version.changelogIsHtml ? 1 : 0);
+                updateDigest(version.relType.ordinal());
+                updateDigest(version.uploaded);
+            }
+
+            updateDigest(mod.moreInfo.size());
+            for (Pair<String, String> moreInfoEntry : mod.moreInfo) {
+                updateDigest(moreInfoEntry.first);
+                updateDigest(moreInfoEntry.second);
+            }
+
+            return md.digest();
+        }
+
+        private void updateDigest(String value) {
+            if (value == null) {
+                mDigest.update((byte) 0);
+                return;
+            }
+
+            byte[] bytes = value.getBytes(UTF8);
+            mDigest.update((byte) 1);
+            updateDigest(bytes.length);
+            mDigest.update(bytes);
+        }
+
+        private void updateDigest(long value) {
+            for (int i = 0; i < 8; i++) {
+                mDigest.update((byte) (value >>> (i * 8)));
+            }
+        }
+
+        public void close() {
+            mInsertModule.close();
+            mUpdateModule.close();
+            mDeleteModule.close();
+            mInsertVersion.close();
+            mDeleteVersions.close();
+            mInsertMoreInfo.close();
+            mDeleteMoreInfo.close();
+            mInsertFts.close();
+            mDeleteFts.close();
+            mMaxVersionId.close();
+            mCompressor.close();
+        }
+
+        private static class ExistingModule {
+            final long id;
+            final byte[] contentHash;
+
+            ExistingModule(long id, byte[] contentHash) {
+                this.id = id;
+                this.contentHash = contentHash;
+            }
+        }
+    }
+
+    /**
+     * The sort keys of a row in the module overview, which a following page
+     * starts after.
+     */
+    public static class OverviewPageKey {
+        private final long id;
+        private final String packageName;
+        private final String title;
+        private final long created;
+        private final long updated;
+        private final long statusRank;
+        private final long searchRank;
+
+        /**
+         * Reads the keys of the current row of a cursor returned by
+         * {@link #queryModuleOverview}.
+         */
+        public OverviewPageKey(Cursor c) {
+            id = c.getLong(c.getColumnIndexOrThrow(ModuleOverviewColumns._ID));
+            packageName = c.getString(c.getColumnIndexOrThrow(ModuleOverviewColumns.PKGNAME));
+            title = c.getString(c.getColumnIndexOrThrow(ModuleOverviewColumns.TITLE));
+            created = c.getLong(c.getColumnIndexOrThrow(ModuleOverviewColumns.CREATED));
+            updated = c.getLong(c.getColumnIndexOrThrow(ModuleOverviewColumns.UPDATED));
+            statusRank = c.getLong(c.getColumnIndexOrThrow(ModuleOverviewColumns.STATUS_RANK));
+            int searchRankIndex = c.getColumnIndex(OverviewColumns.SEARCH_RANK);
+            searchRank = (searchRankIndex != -1) ? c.getLong(searchRankIndex) : 0;
+        }
+    }
+
+    public static class UpdateSummary {
+        public final int moduleUpdates;
+        public final String frameworkUpdateVersion;
+
+        public UpdateSummary(int moduleUpdates, String frameworkUpdateVersion) {
+            this.moduleUpdates = moduleUpdates;
+            this.frameworkUpdateVersion = frameworkUpdateVersion;
+        }
     }
 
     public static class RowNotFoundException extends RuntimeException {
@@ -1,36 +1,40 @@
 package de.ursa.android.gomxpf.installer.repo;
 
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.provider.BaseColumns;
 
 public class RepoDbDefinitions {
-    public static final int DATABASE_VERSION = 4;
+    public static final int DATABASE_VERSION = 15;
+    // Oldest version which is migrated, older databases are recreated
+    static final int DATABASE_VERSION_MIN_MIGRATION = 4;
     public static final String DATABASE_NAME = "repo_cache.db";
     static final String SQL_CREATE_TABLE_REPOSITORIES = "CREATE TABLE "
             + RepositoriesColumns.TABLE_NAME + " (" + RepositoriesColumns._ID
             + " INTEGER PRIMARY KEY AUTOINCREMENT," + RepositoriesColumns.URL
             + " TEXT NOT NULL, " + RepositoriesColumns.TITLE + " TEXT, "
             + RepositoriesColumns.PARTIAL_URL + " TEXT, "
-            + RepositoriesColumns.VERSION + " TEXT, " + "UNIQUE ("
+            + RepositoriesColumns.VERSION + " TEXT, "
+            + RepositoriesColumns.PRIORITY + " INTEGER NOT NULL DEFAULT 0, " + "UNIQUE ("
             + RepositoriesColumns.URL + ") ON CONFLICT REPLACE)";
-    static final String SQL_CREATE_TABLE_MODULES = "CREATE TABLE "
-            + ModulesColumns.TABLE_NAME + " (" + ModulesColumns._ID
-            + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-
-            ModulesColumns.REPO_ID + " INTEGER NOT NULL REFERENCES "
-            + RepositoriesColumns.TABLE_NAME + " ON DELETE CASCADE, "
-            + ModulesColumns.PKGNAME + " TEXT NOT NULL, " + ModulesColumns.TITLE
-            + " TEXT NOT NULL, " + ModulesColumns.SUMMARY + " TEXT, "
-            + ModulesColumns.DESCRIPTION + " TEXT, "
-            + ModulesColumns.DESCRIPTION_IS_HTML + " INTEGER DEFAULT 0, "
-            + ModulesColumns.AUTHOR + " TEXT, " + ModulesColumns.SUPPORT
-            + " TEXT, " + ModulesColumns.CREATED + " INTEGER DEFAULT -1, "
-            + ModulesColumns.UPDATED + " INTEGER DEFAULT -1, "
-            + ModulesColumns.PREFERRED + " INTEGER DEFAULT 1, "
-            + ModulesColumns.LATEST_VERSION + " INTEGER REFERENCES "
-            + ModuleVersionsColumns.TABLE_NAME + ", " + "UNIQUE ("
-            + ModulesColumns.PKGNAME + ", " + ModulesColumns.REPO_ID
-            + ") ON CONFLICT REPLACE)";
+    static final String SQL_CREATE_TABLE_MODULES = getSqlCreateTableModules(ModulesColumns.TABLE_NAME);
+    // Flips the preferred flag of all modules which are (not) the best copy
+    // of their package, only looking at packages in multiple repositories
+    // or without a preferred copy
+    static final String SQL_RESOLVE_PREFERRED_MODULES = "UPDATE "
+            + ModulesColumns.TABLE_NAME + " SET " + ModulesColumns.PREFERRED + " = 1 - "
+            + ModulesColumns.PREFERRED + " WHERE " + ModulesColumns.PKGNAME + " IN (SELECT "
+            + ModulesColumns.PKGNAME + " FROM " + ModulesColumns.TABLE_NAME + " GROUP BY "
+            + ModulesColumns.PKGNAME + " HAVING COUNT(*) > 1 OR MIN(" + ModulesColumns.PREFERRED
+            + ") = 0) AND " + ModulesColumns.PREFERRED + " != (" + ModulesColumns._ID + " = (SELECT m."
+            + ModulesColumns._ID + " FROM " + ModulesColumns.TABLE_NAME + " AS m INNER JOIN "
+            + RepositoriesColumns.TABLE_NAME + " AS r ON r." + RepositoriesColumns._ID + " = m."
+            + ModulesColumns.REPO_ID + " LEFT JOIN " + ModuleVersionsColumns.TABLE_NAME
+            + " AS v ON v." + ModuleVersionsColumns._ID + " = m." + ModulesColumns.LATEST_VERSION
+            + " WHERE m." + ModulesColumns.PKGNAME + " = " + ModulesColumns.TABLE_NAME + "."
+            + ModulesColumns.PKGNAME + " ORDER BY r." + RepositoriesColumns.PRIORITY + " DESC, v."
+            + ModuleVersionsColumns.CODE + " DESC, m." + ModulesColumns.UPDATED + " DESC, m."
+            + ModulesColumns._ID + " LIMIT 1))";
     static final String SQL_CREATE_TABLE_MODULE_VERSIONS = "CREATE TABLE "
             + ModuleVersionsColumns.TABLE_NAME + " ("
             + ModuleVersionsColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
@@ -44,47 +48,250 @@ public class RepoDbDefinitions {
             + ModuleVersionsColumns.CHANGELOG_IS_HTML + " INTEGER DEFAULT 0, "
             + ModuleVersionsColumns.RELTYPE + " INTEGER DEFAULT 0, "
             + ModuleVersionsColumns.UPLOADED + " INTEGER DEFAULT -1)";
-    static final String SQL_CREATE_INDEX_MODULE_VERSIONS_MODULE_ID = "CREATE INDEX "
-            + ModuleVersionsColumns.IDX_MODULE_ID + " ON "
+    // Versions of a module ordered by code and then by ID (the implicit last
+    // column), so the latest version matching the release type is found with
+    // a short scan of this index and no sorting. Another column would come
+    // before the ID and break the order of versions with the same code.
+    static final String SQL_CREATE_INDEX_MODULE_VERSIONS_LATEST = "CREATE INDEX "
+            + ModuleVersionsColumns.IDX_LATEST + " ON "
             + ModuleVersionsColumns.TABLE_NAME + " ("
-            + ModuleVersionsColumns.MODULE_ID + ")";
+            + ModuleVersionsColumns.MODULE_ID + ", "
+            + ModuleVersionsColumns.CODE + " DESC)";
     static final String SQL_CREATE_TABLE_MORE_INFO = "CREATE TABLE "
             + MoreInfoColumns.TABLE_NAME + " (" + MoreInfoColumns._ID
             + " INTEGER PRIMARY KEY AUTOINCREMENT," + MoreInfoColumns.MODULE_ID
             + " INTEGER NOT NULL REFERENCES " + ModulesColumns.TABLE_NAME
             + " ON DELETE CASCADE, " + MoreInfoColumns.LABEL
             + " TEXT NOT NULL, " + MoreInfoColumns.VALUE + " TEXT)";
-    static final String SQL_CREATE_TEMP_TABLE_INSTALLED_MODULES = "CREATE TEMP TABLE "
+    // Descriptions aren't indexed, the table would keep an uncompressed copy
+    static final String SQL_CREATE_TABLE_MODULES_FTS = "CREATE VIRTUAL TABLE "
+            + ModulesFtsColumns.TABLE_NAME + " USING fts4("
+            + ModulesFtsColumns.TITLE + ", " + ModulesFtsColumns.SUMMARY + ", "
+            + ModulesFtsColumns.AUTHOR + ")";
+    static final String SQL_CREATE_TRIGGER_MODULES_FTS_DELETE = "CREATE TRIGGER "
+            + ModulesFtsColumns.TRIGGER_DELETE + " AFTER DELETE ON "
+            + ModulesColumns.TABLE_NAME + " BEGIN DELETE FROM "
+            + ModulesFtsColumns.TABLE_NAME + " WHERE " + ModulesFtsColumns.DOCID
+            + " = old." + ModulesColumns._ID + "; END";
+    static final String SQL_POPULATE_MODULES_FTS = "INSERT INTO "
+            + ModulesFtsColumns.TABLE_NAME + " (" + ModulesFtsColumns.DOCID + ", "
+            + ModulesFtsColumns.TITLE + ", " + ModulesFtsColumns.SUMMARY + ", "
+            + ModulesFtsColumns.AUTHOR + ") SELECT "
+            + ModulesColumns._ID + ", " + ModulesColumns.TITLE + ", " + ModulesColumns.SUMMARY
+            + ", " + ModulesColumns.AUTHOR + " FROM "
+            + ModulesColumns.TABLE_NAME;
+    static final String SQL_CREATE_TABLE_PACKAGE_SNAPSHOT = "CREATE TABLE "
+            + PackageSnapshotColumns.TABLE_NAME + " ("
+            + PackageSnapshotColumns.PKGNAME
+            + " TEXT PRIMARY KEY ON CONFLICT REPLACE, "
+            + PackageSnapshotColumns.VERSION_CODE + " INTEGER NOT NULL, "
+            + PackageSnapshotColumns.LAST_UPDATE_TIME + " INTEGER NOT NULL, "
+            + PackageSnapshotColumns.ENABLED + " INTEGER NOT NULL, "
+            + PackageSnapshotColumns.IS_MODULE + " INTEGER NOT NULL)";
+    static final String SQL_CREATE_TABLE_INSTALLED_MODULES = "CREATE TABLE "
             + InstalledModulesColumns.TABLE_NAME + " ("
             + InstalledModulesColumns.PKGNAME
             + " TEXT PRIMARY KEY ON CONFLICT REPLACE, "
             + InstalledModulesColumns.VERSION_CODE + " INTEGER NOT NULL, "
             + InstalledModulesColumns.VERSION_NAME + " TEXT)";
-    static final String SQL_CREATE_TEMP_VIEW_INSTALLED_MODULES_UPDATES = "CREATE TEMP VIEW "
-            + InstalledModulesUpdatesColumns.VIEW_NAME + " AS SELECT " + "m."
-            + ModulesColumns._ID + " AS "
-            + InstalledModulesUpdatesColumns.MODULE_ID + ", " + "i."
-            + InstalledModulesColumns.PKGNAME + " AS "
-            + InstalledModulesUpdatesColumns.PKGNAME + ", " + "i."
-            + InstalledModulesColumns.VERSION_CODE + " AS "
-            + InstalledModulesUpdatesColumns.INSTALLED_CODE + ", " + "i."
-            + InstalledModulesColumns.VERSION_NAME + " AS "
-            + InstalledModulesUpdatesColumns.INSTALLED_NAME + ", " + "v."
-            + ModuleVersionsColumns._ID + " AS "
-            + InstalledModulesUpdatesColumns.LATEST_ID + ", " + "v."
-            + ModuleVersionsColumns.CODE + " AS "
-            + InstalledModulesUpdatesColumns.LATEST_CODE + ", " + "v."
-            + ModuleVersionsColumns.NAME + " AS "
-            + InstalledModulesUpdatesColumns.LATEST_NAME + " FROM "
-            + InstalledModulesColumns.TABLE_NAME + " AS i" + " INNER JOIN "
-            + ModulesColumns.TABLE_NAME + " AS m" + " ON m."
-            + ModulesColumns.PKGNAME + " = i." + InstalledModulesColumns.PKGNAME
-            + " INNER JOIN " + ModuleVersionsColumns.TABLE_NAME + " AS v"
-            + " ON v." + ModuleVersionsColumns._ID + " = m."
-            + ModulesColumns.LATEST_VERSION + " WHERE "
-            + InstalledModulesUpdatesColumns.LATEST_CODE + " > "
-            + InstalledModulesUpdatesColumns.INSTALLED_CODE + " AND "
-            + ModulesColumns.PREFERRED + " = 1";
+    static final String SQL_CREATE_TEMP_TABLE_RELEASE_TYPE_OVERRIDES = "CREATE TEMP TABLE "
+            + ReleaseTypeOverridesColumns.TABLE_NAME + " ("
+            + ReleaseTypeOverridesColumns.PKGNAME
+            + " TEXT PRIMARY KEY ON CONFLICT REPLACE, "
+            + ReleaseTypeOverridesColumns.RELTYPE + " INTEGER NOT NULL)";
+    static final String SQL_CREATE_TABLE_MODULE_OVERVIEW = "CREATE TABLE "
+            + ModuleOverviewColumns.TABLE_NAME + " (" + ModuleOverviewColumns._ID
+            + " INTEGER PRIMARY KEY, " + ModuleOverviewColumns.PKGNAME
+            + " TEXT NOT NULL, " + ModuleOverviewColumns.TITLE + " TEXT NOT NULL, "
+            + ModuleOverviewColumns.SUMMARY + " TEXT, "
+            + ModuleOverviewColumns.CREATED + " INTEGER DEFAULT -1, "
+            + ModuleOverviewColumns.UPDATED + " INTEGER DEFAULT -1, "
+            + ModuleOverviewColumns.LATEST_VERSION + " TEXT, "
+            + ModuleOverviewColumns.INSTALLED_VERSION + " TEXT, "
+            + ModuleOverviewColumns.IS_FRAMEWORK + " INTEGER NOT NULL, "
+            + ModuleOverviewColumns.IS_INSTALLED + " INTEGER NOT NULL, "
+            + ModuleOverviewColumns.HAS_UPDATE + " INTEGER NOT NULL, "
+            + ModuleOverviewColumns.STATUS_RANK + " INTEGER NOT NULL)";
+    static final String SQL_CREATE_INDEX_MODULE_OVERVIEW_STATUS = "CREATE INDEX "
+            + ModuleOverviewColumns.IDX_STATUS + " ON "
+            + ModuleOverviewColumns.TABLE_NAME + " ("
+            + ModuleOverviewColumns.STATUS_RANK + " DESC, "
+            + ModuleOverviewColumns.TITLE + " COLLATE NOCASE, "
+            + ModuleOverviewColumns.PKGNAME + ")";
+    static final String SQL_CREATE_INDEX_MODULE_OVERVIEW_CREATED = "CREATE INDEX "
+            + ModuleOverviewColumns.IDX_CREATED + " ON "
+            + ModuleOverviewColumns.TABLE_NAME + " ("
+            + ModuleOverviewColumns.CREATED + " DESC, "
+            + ModuleOverviewColumns.STATUS_RANK + " DESC, "
+            + ModuleOverviewColumns.TITLE + " COLLATE NOCASE, "
+            + ModuleOverviewColumns.PKGNAME + ")";
+    static final String SQL_CREATE_INDEX_MODULE_OVERVIEW_UPDATED = "CREATE INDEX "
+            + ModuleOverviewColumns.IDX_UPDATED + " ON "
+            + ModuleOverviewColumns.TABLE_NAME + " ("
+            + ModuleOverviewColumns.UPDATED + " DESC, "
+            + ModuleOverviewColumns.STATUS_RANK + " DESC, "
+            + ModuleOverviewColumns.TITLE + " COLLATE NOCASE, "
+            + ModuleOverviewColumns.PKGNAME + ")";
+    static final String SQL_DELETE_MODULE_OVERVIEW = "DELETE FROM "
+            + ModuleOverviewColumns.TABLE_NAME;
+
+    static final String SQL_CREATE_TABLE_UPDATE_SUMMARY = "CREATE TABLE "
+            + UpdateSummaryColumns.TABLE_NAME + " (" + UpdateSummaryColumns._ID
+            + " INTEGER PRIMARY KEY CHECK (" + UpdateSummaryColumns._ID + " = 0), "
+            + UpdateSummaryColumns.MODULE_UPDATES + " INTEGER NOT NULL DEFAULT 0, "
+            + UpdateSummaryColumns.FRAMEWORK_UPDATE + " TEXT)";
+    static final String SQL_INSERT_UPDATE_SUMMARY = "INSERT INTO "
+            + UpdateSummaryColumns.TABLE_NAME + " (" + UpdateSummaryColumns._ID + ") VALUES (0)";
+    static final String SQL_RECALCULATE_UPDATE_SUMMARY = "UPDATE "
+            + UpdateSummaryColumns.TABLE_NAME + " SET "
+            + UpdateSummaryColumns.MODULE_UPDATES + " = (SELECT COUNT(*) FROM "
+            + ModuleOverviewColumns.TABLE_NAME + " WHERE " + ModuleOverviewColumns.HAS_UPDATE
+            + " = 1 AND " + ModuleOverviewColumns.IS_FRAMEWORK + " = 0), "
+            + UpdateSummaryColumns.FRAMEWORK_UPDATE + " = (SELECT "
+            + ModuleOverviewColumns.LATEST_VERSION + " FROM " + ModuleOverviewColumns.TABLE_NAME
+            + " WHERE " + ModuleOverviewColumns.HAS_UPDATE + " = 1 AND "
+            + ModuleOverviewColumns.IS_FRAMEWORK + " = 1 LIMIT 1)";
+    // The overview rows are replaced whenever they change, which fires both
+    // triggers (recursive triggers are enabled)
+    static final String SQL_CREATE_TRIGGER_UPDATE_SUMMARY_INSERT = "CREATE TRIGGER "
+            + UpdateSummaryColumns.TRIGGER_OVERVIEW_INSERT + " AFTER INSERT ON "
+            + ModuleOverviewColumns.TABLE_NAME + " WHEN new." + ModuleOverviewColumns.HAS_UPDATE
+            + " = 1 BEGIN UPDATE " + UpdateSummaryColumns.TABLE_NAME + " SET "
+            + UpdateSummaryColumns.MODULE_UPDATES + " = " + UpdateSummaryColumns.MODULE_UPDATES
+            + " + (new." + ModuleOverviewColumns.IS_FRAMEWORK + " = 0), "
+            + UpdateSummaryColumns.FRAMEWORK_UPDATE + " = (CASE WHEN new."
+            + ModuleOverviewColumns.IS_FRAMEWORK + " = 1 THEN new." + ModuleOverviewColumns.LATEST_VERSION
+            + " ELSE " + UpdateSummaryColumns.FRAMEWORK_UPDATE + " END); END";
+    static final String SQL_CREATE_TRIGGER_UPDATE_SUMMARY_DELETE = "CREATE TRIGGER "
+            + UpdateSummaryColumns.TRIGGER_OVERVIEW_DELETE + " AFTER DELETE ON "
+            + ModuleOverviewColumns.TABLE_NAME + " WHEN old." + ModuleOverviewColumns.HAS_UPDATE
+            + " = 1 BEGIN UPDATE " + UpdateSummaryColumns.TABLE_NAME + " SET "
+            + UpdateSummaryColumns.MODULE_UPDATES + " = " + UpdateSummaryColumns.MODULE_UPDATES
+            + " - (old." + ModuleOverviewColumns.IS_FRAMEWORK + " = 0), "
+            + UpdateSummaryColumns.FRAMEWORK_UPDATE + " = (CASE WHEN old."
+            + ModuleOverviewColumns.IS_FRAMEWORK + " = 1 THEN NULL ELSE "
+            + UpdateSummaryColumns.FRAMEWORK_UPDATE + " END); END";
+    static final String SQL_CREATE_TABLE_SYNC_HISTORY = "CREATE TABLE "
+            + SyncHistoryColumns.TABLE_NAME + " (" + SyncHistoryColumns._ID
+            + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + SyncHistoryColumns.STARTED + " INTEGER NOT NULL, "
+            + SyncHistoryColumns.TOTAL_TIME + " INTEGER NOT NULL, "
+            + SyncHistoryColumns.REPOSITORIES + " INTEGER NOT NULL, "
+            + SyncHistoryColumns.NOT_MODIFIED + " INTEGER NOT NULL, "
+            + SyncHistoryColumns.FAILED + " INTEGER NOT NULL, "
+            + SyncHistoryColumns.HTTP_STATUSES + " TEXT, "
+            + SyncHistoryColumns.DOWNLOAD_BYTES + " INTEGER NOT NULL, "
+            + SyncHistoryColumns.DOWNLOAD_TIME + " INTEGER NOT NULL, "
+            + SyncHistoryColumns.DECOMPRESS_TIME + " INTEGER NOT NULL, "
+            + SyncHistoryColumns.PARSE_TIME + " INTEGER NOT NULL, "
+            + SyncHistoryColumns.WRITE_TIME + " INTEGER NOT NULL, "
+            + SyncHistoryColumns.INSERTED + " INTEGER NOT NULL, "
+            + SyncHistoryColumns.UPDATED + " INTEGER NOT NULL, "
+            + SyncHistoryColumns.DELETED + " INTEGER NOT NULL)";
+    // Only the most recent runs are kept
+    static final String SQL_TRIM_SYNC_HISTORY = "DELETE FROM "
+            + SyncHistoryColumns.TABLE_NAME + " WHERE " + SyncHistoryColumns._ID
+            + " <= (SELECT MAX(" + SyncHistoryColumns._ID + ") FROM "
+            + SyncHistoryColumns.TABLE_NAME + ") - " + SyncHistoryColumns.MAX_ROWS;
+
+    /**
+     * Returns a statement which (re)calculates the overview rows of all
+     * preferred modules matching the given condition on {@code modules AS m}.
+     */
+    static String getSqlRefreshModuleOverview(String frameworkPackageName, String condition) {
+        return "INSERT OR REPLACE INTO " + ModuleOverviewColumns.TABLE_NAME
+                + " SELECT *, " + ModuleOverviewColumns.IS_FRAMEWORK + " * 4 + "
+                + ModuleOverviewColumns.HAS_UPDATE + " * 2 + "
+                + ModuleOverviewColumns.IS_INSTALLED + " FROM (SELECT "
+                + "m." + ModulesColumns._ID + ", m." + ModulesColumns.PKGNAME + ", "
+                + "m." + ModulesColumns.TITLE + ", m." + ModulesColumns.SUMMARY + ", "
+                + "m." + ModulesColumns.CREATED + ", m." + ModulesColumns.UPDATED + ", "
+                + "v." + ModuleVersionsColumns.NAME + ", i." + InstalledModulesColumns.VERSION_NAME + ", "
+                + "(CASE WHEN m." + ModulesColumns.PKGNAME + " = "
+                + DatabaseUtils.sqlEscapeString(frameworkPackageName) + " THEN 1 ELSE 0 END) AS "
+                + ModuleOverviewColumns.IS_FRAMEWORK + ", "
+                + "(CASE WHEN i." + InstalledModulesColumns.VERSION_NAME + " IS NOT NULL THEN 1 ELSE 0 END) AS "
+                + ModuleOverviewColumns.IS_INSTALLED + ", "
+                + "(CASE WHEN v." + ModuleVersionsColumns.CODE + " > i." + InstalledModulesColumns.VERSION_CODE
+                + " THEN 1 ELSE 0 END) AS " + ModuleOverviewColumns.HAS_UPDATE
+                + " FROM " + ModulesColumns.TABLE_NAME + " AS m"
+                + " LEFT JOIN " + ModuleVersionsColumns.TABLE_NAME + " AS v"
+                + " ON v." + ModuleVersionsColumns._ID + " = m." + ModulesColumns.LATEST_VERSION
+                + " LEFT JOIN " + InstalledModulesColumns.TABLE_NAME + " AS i"
+                + " ON i." + InstalledModulesColumns.PKGNAME + " = m." + ModulesColumns.PKGNAME
+                + " WHERE m." + ModulesColumns.PREFERRED + " = 1 AND " + condition + ")";
+    }
+
+    /**
+     * Returns the definition of the modules table under the given name, so
+     * that it can be rebuilt during an upgrade.
+     */
+    static String getSqlCreateTableModules(String tableName) {
+        return "CREATE TABLE " + tableName + " (" + ModulesColumns._ID
+                + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + ModulesColumns.REPO_ID + " INTEGER NOT NULL REFERENCES "
+                + RepositoriesColumns.TABLE_NAME + " ON DELETE CASCADE, "
+                + ModulesColumns.PKGNAME + " TEXT NOT NULL, " + ModulesColumns.TITLE
+                + " TEXT NOT NULL, " + ModulesColumns.SUMMARY + " TEXT, "
+                + ModulesColumns.DESCRIPTION + " TEXT, "
+                + ModulesColumns.DESCRIPTION_IS_HTML + " INTEGER DEFAULT 0, "
+                + ModulesColumns.AUTHOR + " TEXT, " + ModulesColumns.SUPPORT
+                + " TEXT, " + ModulesColumns.CREATED + " INTEGER DEFAULT -1, "
+                + ModulesColumns.UPDATED + " INTEGER DEFAULT -1, "
+                + ModulesColumns.PREFERRED + " INTEGER DEFAULT 1, "
+                + ModulesColumns.LATEST_VERSION + " INTEGER REFERENCES "
+                + ModuleVersionsColumns.TABLE_NAME + " DEFERRABLE INITIALLY DEFERRED, "
+                + ModulesColumns.CONTENT_HASH + " BLOB, " + "UNIQUE ("
+                + ModulesColumns.PKGNAME + ", " + ModulesColumns.REPO_ID
+                + ") ON CONFLICT REPLACE)";
+    }
+
+    /**
+     * Returns the triggers which keep the module overview in sync with the
+     * modules, their latest versions and the installed modules.
+     */
+    static String[] getSqlCreateTriggersModuleOverview(String frameworkPackageName) {
+        String deleteOld = "DELETE FROM " + ModuleOverviewColumns.TABLE_NAME
+                + " WHERE " + ModuleOverviewColumns._ID + " = old." + ModulesColumns._ID + "; ";
+        return new String[]{
+                "CREATE TRIGGER " + ModuleOverviewColumns.TRIGGER_MODULES_INSERT
+                        + " AFTER INSERT ON " + ModulesColumns.TABLE_NAME + " BEGIN "
+                        + getSqlRefreshModuleOverview(frameworkPackageName,
+                        "m." + ModulesColumns._ID + " = new." + ModulesColumns._ID) + "; END",
+                "CREATE TRIGGER " + ModuleOverviewColumns.TRIGGER_MODULES_UPDATE
+                        + " AFTER UPDATE ON " + ModulesColumns.TABLE_NAME + " WHEN "
+                        + "new." + ModulesColumns.PKGNAME + " IS NOT old." + ModulesColumns.PKGNAME
+                        + " OR new." + ModulesColumns.TITLE + " IS NOT old." + ModulesColumns.TITLE
+                        + " OR new." + ModulesColumns.SUMMARY + " IS NOT old." + ModulesColumns.SUMMARY
+                        + " OR new." + ModulesColumns.CREATED + " IS NOT old." + ModulesColumns.CREATED
+                        + " OR new." + ModulesColumns.UPDATED + " IS NOT old." + ModulesColumns.UPDATED
+                        + " OR new." + ModulesColumns.PREFERRED + " IS NOT old." + ModulesColumns.PREFERRED
+                        + " OR new." + ModulesColumns.LATEST_VERSION + " IS NOT old." + ModulesColumns.LATEST_VERSION
+                        + " BEGIN " + deleteOld
+                        + getSqlRefreshModuleOverview(frameworkPackageName,
+                        "m." + ModulesColumns._ID + " = new." + ModulesColumns._ID) + "; END",
+                "CREATE TRIGGER " + ModuleOverviewColumns.TRIGGER_MODULES_DELETE
+                        + " AFTER DELETE ON " + ModulesColumns.TABLE_NAME + " BEGIN "
+                        + deleteOld + "END",
+                // The module row is written before its versions during a sync
+                "CREATE TRIGGER " + ModuleOverviewColumns.TRIGGER_VERSIONS_INSERT
+                        + " AFTER INSERT ON " + ModuleVersionsColumns.TABLE_NAME + " BEGIN "
+                        + getSqlRefreshModuleOverview(frameworkPackageName,
+                        "m." + ModulesColumns._ID + " = new." + ModuleVersionsColumns.MODULE_ID
+                                + " AND m." + ModulesColumns.LATEST_VERSION + " = new." + ModuleVersionsColumns._ID)
+                        + "; END",
+                "CREATE TRIGGER " + ModuleOverviewColumns.TRIGGER_INSTALLED_INSERT
+                        + " AFTER INSERT ON " + InstalledModulesColumns.TABLE_NAME + " BEGIN "
+                        + getSqlRefreshModuleOverview(frameworkPackageName,
+                        "m." + ModulesColumns.PKGNAME + " = new." + InstalledModulesColumns.PKGNAME)
+                        + "; END",
+                "CREATE TRIGGER " + ModuleOverviewColumns.TRIGGER_INSTALLED_DELETE
+                        + " AFTER DELETE ON " + InstalledModulesColumns.TABLE_NAME + " BEGIN "
+                        + getSqlRefreshModuleOverview(frameworkPackageName,
+                        "m." + ModulesColumns.PKGNAME + " = old." + InstalledModulesColumns.PKGNAME)
+                        + "; END",
+        };
+    }
 
     //////////////////////////////////////////////////////////////////////////
     public interface RepositoriesColumns extends BaseColumns {
@@ -94,6 +301,7 @@ public class RepoDbDefinitions {
         String TITLE = "title";
         String PARTIAL_URL = "partial_url";
         String VERSION = "version";
+        String PRIORITY = "priority";
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -104,6 +312,7 @@ public class RepoDbDefinitions {
         String PKGNAME = "pkgname";
         String TITLE = "title";
         String SUMMARY = "summary";
+        // TEXT or deflated BLOB, see CompressedText
         String DESCRIPTION = "description";
         String DESCRIPTION_IS_HTML = "description_is_html";
         String AUTHOR = "author";
@@ -113,18 +322,31 @@ public class RepoDbDefinitions {
 
         String PREFERRED = "preferred";
         String LATEST_VERSION = "latest_version_id";
+        String CONTENT_HASH = "content_hash";
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    public interface ModulesFtsColumns {
+        String TABLE_NAME = ModulesColumns.TABLE_NAME + "_fts";
+        String TRIGGER_DELETE = TABLE_NAME + "_delete";
+
+        String DOCID = "docid";
+        String TITLE = ModulesColumns.TITLE;
+        String SUMMARY = ModulesColumns.SUMMARY;
+        String AUTHOR = ModulesColumns.AUTHOR;
     }
 
     //////////////////////////////////////////////////////////////////////////
     public interface ModuleVersionsColumns extends BaseColumns {
         String TABLE_NAME = "module_versions";
-        String IDX_MODULE_ID = "module_versions_module_id_idx";
+        String IDX_LATEST = "module_versions_latest_idx";
 
         String MODULE_ID = "module_id";
         String NAME = "name";
         String CODE = "code";
         String DOWNLOAD_LINK = "download_link";
         String MD5SUM = "md5sum";
+        // TEXT or deflated BLOB, see CompressedText
         String CHANGELOG = "changelog";
         String CHANGELOG_IS_HTML = "changelog_is_html";
         String RELTYPE = "reltype";
@@ -150,16 +372,81 @@ public class RepoDbDefinitions {
     }
 
     //////////////////////////////////////////////////////////////////////////
-    public interface InstalledModulesUpdatesColumns {
-        String VIEW_NAME = InstalledModulesColumns.TABLE_NAME + "_updates";
+    public interface PackageSnapshotColumns {
+        String TABLE_NAME = "package_snapshot";
 
-        String MODULE_ID = "module_id";
         String PKGNAME = "pkgname";
-        String INSTALLED_CODE = "installed_code";
-        String INSTALLED_NAME = "installed_name";
-        String LATEST_ID = "latest_id";
-        String LATEST_CODE = "latest_code";
-        String LATEST_NAME = "latest_name";
+        String VERSION_CODE = "version_code";
+        String LAST_UPDATE_TIME = "last_update_time";
+        String ENABLED = "enabled";
+        String IS_MODULE = "is_module";
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    public interface ReleaseTypeOverridesColumns {
+        String TABLE_NAME = "release_type_overrides";
+
+        String PKGNAME = "pkgname";
+        String RELTYPE = "reltype";
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    public interface ModuleOverviewColumns extends BaseColumns {
+        String TABLE_NAME = "module_overview";
+        String IDX_STATUS = "module_overview_status_idx";
+        String IDX_CREATED = "module_overview_created_idx";
+        String IDX_UPDATED = "module_overview_updated_idx";
+        String TRIGGER_MODULES_INSERT = "module_overview_modules_insert";
+        String TRIGGER_MODULES_UPDATE = "module_overview_modules_update";
+        String TRIGGER_MODULES_DELETE = "module_overview_modules_delete";
+        String TRIGGER_VERSIONS_INSERT = "module_overview_versions_insert";
+        String TRIGGER_INSTALLED_INSERT = "module_overview_installed_insert";
+        String TRIGGER_INSTALLED_DELETE = "module_overview_installed_delete";
+
+        String PKGNAME = OverviewColumns.PKGNAME;
+        String TITLE = OverviewColumns.TITLE;
+        String SUMMARY = OverviewColumns.SUMMARY;
+        String CREATED = OverviewColumns.CREATED;
+        String UPDATED = OverviewColumns.UPDATED;
+        String LATEST_VERSION = OverviewColumns.LATEST_VERSION;
+        String INSTALLED_VERSION = OverviewColumns.INSTALLED_VERSION;
+        String IS_FRAMEWORK = OverviewColumns.IS_FRAMEWORK;
+        String IS_INSTALLED = OverviewColumns.IS_INSTALLED;
+        String HAS_UPDATE = OverviewColumns.HAS_UPDATE;
+        /** is_framework, has_update and is_installed combined into one sort key */
+        String STATUS_RANK = "status_rank";
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    public interface UpdateSummaryColumns extends BaseColumns {
+        String TABLE_NAME = "update_summary";
+        String TRIGGER_OVERVIEW_INSERT = "update_summary_overview_insert";
+        String TRIGGER_OVERVIEW_DELETE = "update_summary_overview_delete";
+
+        String MODULE_UPDATES = "module_updates";
+        String FRAMEWORK_UPDATE = "framework_update";
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    public interface SyncHistoryColumns extends BaseColumns {
+        String TABLE_NAME = "sync_history";
+        int MAX_ROWS = 50;
+
+        // All times are in ms
+        String STARTED = "started";
+        String TOTAL_TIME = "total_time";
+        String REPOSITORIES = "repositories";
+        String NOT_MODIFIED = "not_modified";
+        String FAILED = "failed";
+        String HTTP_STATUSES = "http_statuses";
+        String DOWNLOAD_BYTES = "download_bytes";
+        String DOWNLOAD_TIME = "download_time";
+        String DECOMPRESS_TIME = "decompress_time";
+        String PARSE_TIME = "parse_time";
+        String WRITE_TIME = "write_time";
+        String INSERTED = "inserted";
+        String UPDATED = "updated";
+        String DELETED = "deleted";
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -176,6 +463,8 @@ public class RepoDbDefinitions {
         String IS_FRAMEWORK = "is_framework";
         String IS_INSTALLED = "is_installed";
         String HAS_UPDATE = "has_update";
+
+        String SEARCH_RANK = "search_rank";
     }
 
     public static class OverviewColumnsIndexes {
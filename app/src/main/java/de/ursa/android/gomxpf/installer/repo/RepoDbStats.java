@@ -0,0 +1,176 @@
+package de.ursa.android.gomxpf.installer.repo;
+
+import android.util.Log;
+
+import java.text.DateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.ursa.android.gomxpf.installer.XposedApp;
+
+/**
+ * Latency histograms and row counts of the named {@link RepoDb} operations.
+ * Operations which take longer than the slow threshold are logged and kept
+ * in a short list of recent slow operations.
+ */
+public final class RepoDbStats {
+    public static final String OP_QUERY_OVERVIEW = "queryModuleOverview";
+    public static final String OP_GET_MODULE = "getModuleByPackageName";
+    public static final String OP_INSERT_MODULE = "insertModule";
+    public static final String OP_APPLY_MODULE = "applyModule";
+    public static final String OP_UPDATE_LATEST_VERSION = "updateModuleLatestVersion";
+    public static final String OP_UPDATE_ALL_LATEST_VERSIONS = "updateAllModulesLatestVersion";
+    public static final String OP_RESOLVE_PREFERRED = "resolvePreferredModules";
+
+    public static final int DEFAULT_SLOW_THRESHOLD_MS = 100;
+
+    // Upper bounds (exclusive) of the histogram buckets in ms, the last
+    // bucket takes everything above
+    private static final int[] BUCKET_LIMITS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+    private static final int MAX_SLOW_ENTRIES = 20;
+
+    private static final Map<String, Operation> sOperations = new TreeMap<>();
+    private static final ArrayDeque<SlowEntry> sSlowEntries = new ArrayDeque<>();
+    private static volatile long sSlowThresholdNanos = DEFAULT_SLOW_THRESHOLD_MS * 1000000L;
+
+    private RepoDbStats() {
+    }
+
+    /**
+     * @return the start time to pass to {@link #record}
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    public static void record(String operation, long startNanos, int rows) {
+        long duration = System.nanoTime() - startNanos;
+        boolean slow = duration >= sSlowThresholdNanos;
+
+        synchronized (sOperations) {
+            Operation op = sOperations.get(operation);
+            if (op == null) {
+                op = new Operation();
+                sOperations.put(operation, op);
+            }
+            op.add(duration, rows);
+
+            if (slow) {
+                if (sSlowEntries.size() >= MAX_SLOW_ENTRIES)
+                    sSlowEntries.removeFirst();
+                sSlowEntries.addLast(new SlowEntry(operation, duration, rows));
+            }
+        }
+
+        if (slow)
+            Log.w(XposedApp.TAG, String.format(Locale.US, "RepoDbStats -> slow %s: %.1f ms, %d rows",
+                    operation, duration / 1e6, rows));
+    }
+
+    public static void setSlowThresholdMs(int thresholdMs) {
+        sSlowThresholdNanos = Math.max(0, thresholdMs) * 1000000L;
+    }
+
+    public static void reset() {
+        synchronized (sOperations) {
+            sOperations.clear();
+            sSlowEntries.clear();
+        }
+    }
+
+    /**
+     * @return a plain text report of all operations recorded so far
+     */
+    public static String getReport() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (sOperations) {
+            if (sOperations.isEmpty())
+                sb.append("No operations recorded\n");
+
+            for (Map.Entry<String, Operation> entry : sOperations.entrySet()) {
+                Operation op = entry.getValue();
+                sb.append(entry.getKey()).append('\n');
+                sb.append(String.format(Locale.US,
+                        "  count %d, avg %.2f ms, p50 < %s, p95 < %s, max %.2f ms, rows %d (avg %.1f)\n",
+                        op.count, op.totalNanos / 1e6 / op.count, op.percentile(0.5), op.percentile(0.95),
+                        op.maxNanos / 1e6, op.rows, (double) op.rows / op.count));
+                sb.append("  ");
+                for (int i = 0; i < op.buckets.length; i++) {
+                    if (op.buckets[i] == 0)
+                        continue;
+                    sb.append(bucketLabel(i)).append(": ").append(op.buckets[i]).append("  ");
+                }
+                sb.append('\n');
+            }
+
+            sb.append(String.format(Locale.US, "\nSlow operations (>= %d ms)\n", sSlowThresholdNanos / 1000000));
+            if (sSlowEntries.isEmpty())
+                sb.append("  none\n");
+            DateFormat format = DateFormat.getTimeInstance(DateFormat.MEDIUM);
+            for (SlowEntry slow : sSlowEntries) {
+                sb.append(String.format(Locale.US, "  %s %s: %.1f ms, %d rows\n",
+                        format.format(new Date(slow.time)), slow.operation, slow.durationNanos / 1e6, slow.rows));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String bucketLabel(int bucket) {
+        if (bucket < BUCKET_LIMITS.length)
+            return "<" + BUCKET_LIMITS[bucket] + "ms";
+        else
+            return ">=" + BUCKET_LIMITS[BUCKET_LIMITS.length - 1] + "ms";
+    }
+
+    private static class Operation {
+        final int[] buckets = new int[BUCKET_LIMITS.length + 1];
+        int count = 0;
+        long totalNanos = 0;
+        long maxNanos = 0;
+        long rows = 0;
+
+        void add(long durationNanos, int rowCount) {
+            long ms = durationNanos / 1000000;
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS.length && ms >= BUCKET_LIMITS[bucket])
+                bucket++;
+            buckets[bucket]++;
+
+            count++;
+            totalNanos += durationNanos;
+            maxNanos = Math.max(maxNanos, durationNanos);
+            rows += rowCount;
+        }
+
+        /**
+         * @return the upper bound of the bucket containing the percentile
+         */
+        String percentile(double fraction) {
+            long target = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target)
+                    return (i < BUCKET_LIMITS.length) ? BUCKET_LIMITS[i] + " ms" : "inf";
+            }
+            return "inf";
+        }
+    }
+
+    private static class SlowEntry {
+        final String operation;
+        final long durationNanos;
+        final int rows;
+        final long time;
+
+        SlowEntry(String operation, long durationNanos, int rows) {
+            this.operation = operation;
+            this.durationNanos = durationNanos;
+            this.rows = rows;
+            this.time = System.currentTimeMillis();
+        }
+    }
+}
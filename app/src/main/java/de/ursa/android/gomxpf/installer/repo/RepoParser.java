@@ -8,6 +8,7 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.LevelListDrawable;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
 import android.text.Html;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
@@ -31,6 +32,7 @@ public class RepoParser {
     protected final static String NS = null;
     protected final XmlPullParser parser;
     protected RepoParserCallback mCallback;
+    protected CancellationSignal mCancellationSignal;
     private boolean mRepoEventTriggered = false;
 
     protected RepoParser(InputStream is, RepoParserCallback callback) throws XmlPullParserException, IOException {
@@ -42,7 +44,19 @@ public class RepoParser {
     }
 
     public static void parse(InputStream is, RepoParserCallback callback) throws XmlPullParserException, IOException {
-        new RepoParser(is, callback).readRepo();
+        parse(is, callback, null);
+    }
+
+    /**
+     * Like {@link #parse(InputStream, RepoParserCallback)}, but throws an
+     * {@link android.os.OperationCanceledException} between two top-level
+     * elements once the signal has been cancelled.
+     */
+    public static void parse(InputStream is, RepoParserCallback callback,
+                             CancellationSignal cancellationSignal) throws XmlPullParserException, IOException {
+        RepoParser parser = new RepoParser(is, callback);
+        parser.mCancellationSignal = cancellationSignal;
+        parser.readRepo();
     }
 
     public static Spanned parseSimpleHtml(final Context c, String source, final TextView textView) {
@@ -86,6 +100,9 @@ public class RepoParser {
         repository.version = parser.getAttributeValue(NS, "version");
 
         while (parser.nextTag() == XmlPullParser.START_TAG) {
+            if (mCancellationSignal != null)
+                mCancellationSignal.throwIfCanceled();
+
             String tagName = parser.getName();
             switch (tagName) {
                 case "name":
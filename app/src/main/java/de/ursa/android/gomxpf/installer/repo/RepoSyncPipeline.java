@@ -0,0 +1,250 @@
+package de.ursa.android.gomxpf.installer.repo;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.ursa.android.gomxpf.installer.XposedApp;
+import de.ursa.android.gomxpf.installer.repo.RepoParser.RepoParserCallback;
+
+/**
+ * Decouples {@link RepoParser} from the database writes. The parser thread
+ * only queues the parsed events, a dedicated writer thread replays them on the
+ * wrapped callback and commits every {@code chunkSize} modules (or only once at
+ * the end if it is 0). The queue is bounded, so the parser blocks when the
+ * writer falls behind. The commit listener is called on the writer thread
+ * after each commit and once the last transaction has ended.
+ */
+public class RepoSyncPipeline implements RepoParserCallback {
+    private static final int EVENT_METADATA = 0;
+    private static final int EVENT_NEW_MODULE = 1;
+    private static final int EVENT_REMOVE_MODULE = 2;
+    private static final int EVENT_COMPLETED = 3;
+    private static final int EVENT_END = 4;
+
+    private final RepoParserCallback mTarget;
+    private final Runnable mCommitListener;
+    private final int mChunkSize;
+    private final int mDrainSize;
+    private final BlockingQueue<Event> mQueue;
+    private final Thread mWriter;
+    private volatile Throwable mWriterError = null;
+    private volatile boolean mAborted = false;
+
+    // Statistics, producer side
+    private long mProducerStart;
+    private long mProducerTime;
+    private long mProducerStalled = 0;
+    private int mProduced = 0;
+
+    // Statistics, writer side (only read after the writer has been joined)
+    private long mWriterBusy = 0;
+    private int mWritten = 0;
+    private int mCommits = 0;
+
+    public RepoSyncPipeline(RepoParserCallback target, int chunkSize, int queueCapacity,
+                            Runnable commitListener) {
+        mTarget = target;
+        mCommitListener = commitListener;
+        mChunkSize = Math.max(0, chunkSize);
+        mDrainSize = Math.max(1, queueCapacity);
+        mQueue = new ArrayBlockingQueue<>(mDrainSize);
+        mWriter = new Thread("RepoSyncWriter") {
+            @Override
+            public void run() {
+                try {
+                    writeLoop();
+                } catch (Throwable t) {
+                    mWriterError = t;
+                    // Unblock the producer in case it is waiting for space
+                    mQueue.clear();
+                }
+            }
+        };
+    }
+
+    public void start() {
+        mProducerStart = SystemClock.elapsedRealtime();
+        mWriter.start();
+    }
+
+    /**
+     * Waits until all queued events have been written. Rethrows any error
+     * which occurred on the writer thread.
+     */
+    public void finish() {
+        mProducerTime = SystemClock.elapsedRealtime() - mProducerStart;
+        enqueue(new Event(EVENT_END));
+        join();
+        if (mWriterError != null)
+            throw new RuntimeException("Could not write repository", mWriterError);
+
+        logStatistics();
+    }
+
+    /**
+     * Stops the writer thread without committing the pending batch.
+     */
+    public void abort() {
+        mAborted = true;
+        mQueue.clear();
+        mQueue.offer(new Event(EVENT_END));
+        join();
+    }
+
+    private void join() {
+        boolean interrupted = false;
+        while (mWriter.isAlive()) {
+            try {
+                mWriter.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void enqueue(Event event) {
+        if (!mQueue.offer(event)) {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                while (!mQueue.offer(event, 100, TimeUnit.MILLISECONDS)) {
+                    checkWriter();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the repository writer", e);
+            }
+            mProducerStalled += SystemClock.elapsedRealtime() - start;
+        }
+        checkWriter();
+    }
+
+    private void checkWriter() {
+        if (mWriterError != null)
+            throw new RuntimeException("Could not write repository", mWriterError);
+    }
+
+    private void writeLoop() throws InterruptedException {
+        List<Event> batch = new ArrayList<>(mDrainSize);
+        int uncommitted = 0;
+        boolean inTransaction = false;
+        try {
+            while (true) {
+                batch.add(mQueue.take());
+                mQueue.drainTo(batch, mDrainSize - 1);
+
+                long start = SystemClock.elapsedRealtime();
+                for (Event event : batch) {
+                    if (event.type == EVENT_END || mAborted) {
+                        if (inTransaction && !mAborted) {
+                            RepoDb.setTransactionSuccessful();
+                            mCommits++;
+                        }
+                        mWriterBusy += SystemClock.elapsedRealtime() - start;
+                        return;
+                    }
+
+                    if (!inTransaction) {
+                        RepoDb.beginTransation();
+                        inTransaction = true;
+                    }
+
+                    dispatch(event);
+                    mWritten++;
+
+                    // Like the single-thread import, only modules count towards a chunk
+                    if (event.type == EVENT_NEW_MODULE && mChunkSize > 0 && ++uncommitted >= mChunkSize) {
+                        RepoDb.commitTransaction();
+                        mCommitListener.run();
+                        uncommitted = 0;
+                        mCommits++;
+                    }
+                }
+                mWriterBusy += SystemClock.elapsedRealtime() - start;
+                batch.clear();
+            }
+        } finally {
+            if (inTransaction) {
+                RepoDb.endTransation();
+                mCommitListener.run();
+            }
+        }
+    }
+
+    private void dispatch(Event event) {
+        switch (event.type) {
+            case EVENT_METADATA:
+                mTarget.onRepositoryMetadata(event.repository);
+                break;
+            case EVENT_NEW_MODULE:
+                mTarget.onNewModule(event.module);
+                break;
+            case EVENT_REMOVE_MODULE:
+                mTarget.onRemoveModule(event.packageName);
+                break;
+            case EVENT_COMPLETED:
+                mTarget.onCompleted(event.repository);
+                break;
+        }
+    }
+
+    private void logStatistics() {
+        long parseTime = Math.max(1, mProducerTime - mProducerStalled);
+        long writeTime = Math.max(1, mWriterBusy);
+        Log.i(XposedApp.TAG, String.format(
+                "RepoSyncPipeline -> parsed %d events in %d ms (%.1f/s, stalled %d ms), wrote %d events in %d ms (%.1f/s, %d commits)",
+                mProduced, parseTime, mProduced * 1000f / parseTime, mProducerStalled,
+                mWritten, writeTime, mWritten * 1000f / writeTime, mCommits));
+    }
+
+    @Override
+    public void onRepositoryMetadata(Repository repository) {
+        Event event = new Event(EVENT_METADATA);
+        event.repository = repository;
+        produce(event);
+    }
+
+    @Override
+    public void onNewModule(Module module) {
+        Event event = new Event(EVENT_NEW_MODULE);
+        event.module = module;
+        produce(event);
+    }
+
+    @Override
+    public void onRemoveModule(String packageName) {
+        Event event = new Event(EVENT_REMOVE_MODULE);
+        event.packageName = packageName;
+        produce(event);
+    }
+
+    @Override
+    public void onCompleted(Repository repository) {
+        Event event = new Event(EVENT_COMPLETED);
+        event.repository = repository;
+        produce(event);
+    }
+
+    private void produce(Event event) {
+        enqueue(event);
+        mProduced++;
+    }
+
+    private static class Event {
+        final int type;
+        Repository repository;
+        Module module;
+        String packageName;
+
+        Event(int type) {
+            this.type = type;
+        }
+    }
+}
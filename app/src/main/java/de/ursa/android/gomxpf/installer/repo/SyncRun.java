@@ -0,0 +1,109 @@
+package de.ursa.android.gomxpf.installer.repo;
+
+import android.database.Cursor;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.SyncHistoryColumns;
+
+/**
+ * Timings and counters of one repository sync, summed up over all
+ * repositories. Times are in ms. Downloads run in parallel, so the download
+ * time can exceed the total time.
+ */
+public class SyncRun {
+    public long started;
+    public long totalTime;
+    public int repositories;
+    public int notModified;
+    public int failed;
+    public final StringBuilder httpStatuses = new StringBuilder();
+    public long downloadBytes;
+    public long downloadTime;
+    /** Reading the (decompressed) repository file */
+    public long decompressTime;
+    /** Parsing, excluding reading the file and writes on the same thread */
+    public long parseTime;
+    public long writeTime;
+    public int inserted;
+    public int updated;
+    public int deleted;
+
+    public void addHttpStatus(int httpStatus) {
+        httpStatuses.append(httpStatus).append(' ');
+    }
+
+    /**
+     * @return a readable report of the recorded syncs, most recent first
+     */
+    public static String getHistoryReport() {
+        StringBuilder sb = new StringBuilder();
+        DateFormat format = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.MEDIUM);
+        Cursor c = RepoDb.querySyncHistory();
+        try {
+            if (c.getCount() == 0)
+                sb.append("No syncs recorded\n");
+
+            while (c.moveToNext()) {
+                sb.append(format.format(new Date(getLong(c, SyncHistoryColumns.STARTED))))
+                        .append(String.format(Locale.US, ": %d ms total\n", getLong(c, SyncHistoryColumns.TOTAL_TIME)));
+                sb.append(String.format(Locale.US,
+                        "  %d repositories (%d not modified, %d failed), HTTP %s\n",
+                        getLong(c, SyncHistoryColumns.REPOSITORIES), getLong(c, SyncHistoryColumns.NOT_MODIFIED),
+                        getLong(c, SyncHistoryColumns.FAILED), getString(c, SyncHistoryColumns.HTTP_STATUSES)));
+                sb.append(String.format(Locale.US,
+                        "  download %d KiB in %d ms, decompress %d ms, parse %d ms, write %d ms\n",
+                        getLong(c, SyncHistoryColumns.DOWNLOAD_BYTES) / 1024, getLong(c, SyncHistoryColumns.DOWNLOAD_TIME),
+                        getLong(c, SyncHistoryColumns.DECOMPRESS_TIME), getLong(c, SyncHistoryColumns.PARSE_TIME),
+                        getLong(c, SyncHistoryColumns.WRITE_TIME)));
+                sb.append(String.format(Locale.US, "  %d new / %d changed / %d removed modules\n",
+                        getLong(c, SyncHistoryColumns.INSERTED), getLong(c, SyncHistoryColumns.UPDATED),
+                        getLong(c, SyncHistoryColumns.DELETED)));
+            }
+        } finally {
+            c.close();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return all columns of the recorded syncs as CSV, most recent first
+     */
+    public static String getHistoryCsv() {
+        StringBuilder sb = new StringBuilder();
+        Cursor c = RepoDb.querySyncHistory();
+        try {
+            String[] columns = c.getColumnNames();
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0)
+                    sb.append(',');
+                sb.append(columns[i]);
+            }
+            sb.append('\n');
+
+            while (c.moveToNext()) {
+                for (int i = 0; i < columns.length; i++) {
+                    if (i > 0)
+                        sb.append(',');
+                    String value = c.getString(i);
+                    if (value != null)
+                        sb.append(value);
+                }
+                sb.append('\n');
+            }
+        } finally {
+            c.close();
+        }
+        return sb.toString();
+    }
+
+    private static long getLong(Cursor c, String column) {
+        return c.getLong(c.getColumnIndexOrThrow(column));
+    }
+
+    private static String getString(Cursor c, String column) {
+        return c.getString(c.getColumnIndexOrThrow(column));
+    }
+}
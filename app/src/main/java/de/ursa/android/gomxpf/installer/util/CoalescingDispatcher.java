@@ -0,0 +1,79 @@
+package de.ursa.android.gomxpf.installer.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Collects listener events from any thread and delivers them once on the
+ * main thread, after no further event has arrived for a short time. The
+ * package names of all events within that window are merged into one set.
+ * A steady stream of events is still delivered at least every
+ * {@link #MAX_DELAY} ms.
+ */
+public abstract class CoalescingDispatcher {
+    public static final int DEFAULT_WINDOW = 200;
+    public static final int MAX_DELAY = 1000;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final int mWindow;
+    private Set<String> mPendingPackages = null;
+    private long mFirstEventTime;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            Set<String> packageNames;
+            synchronized (CoalescingDispatcher.this) {
+                packageNames = mPendingPackages;
+                mPendingPackages = null;
+            }
+            if (packageNames != null)
+                onDispatch(Collections.unmodifiableSet(packageNames));
+        }
+    };
+
+    public CoalescingDispatcher() {
+        this(DEFAULT_WINDOW);
+    }
+
+    public CoalescingDispatcher(int window) {
+        mWindow = window;
+    }
+
+    /**
+     * Queues an event which doesn't concern specific packages.
+     */
+    public void dispatch() {
+        dispatch(Collections.<String>emptySet());
+    }
+
+    public void dispatch(String packageName) {
+        dispatch(Collections.singleton(packageName));
+    }
+
+    public synchronized void dispatch(Collection<String> packageNames) {
+        long now = SystemClock.uptimeMillis();
+        if (mPendingPackages == null) {
+            mPendingPackages = new HashSet<>();
+            mFirstEventTime = now;
+        }
+        mPendingPackages.addAll(packageNames);
+
+        // Postpone the delivery, but not beyond the maximum delay
+        mHandler.removeCallbacks(mFlush);
+        long deliverAt = Math.min(now + mWindow, mFirstEventTime + MAX_DELAY);
+        mHandler.postAtTime(mFlush, deliverAt);
+    }
+
+    /**
+     * Called on the main thread with the packages of all coalesced events
+     * (empty if none of them concerned specific packages).
+     */
+    protected abstract void onDispatch(Set<String> packageNames);
+}
@@ -7,7 +7,10 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.os.Environment;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.widget.Toast;
 
@@ -33,6 +36,7 @@ import de.ursa.android.gomxpf.installer.repo.ReleaseType;
 public class DownloadsUtil {
     public static final String MIME_TYPE_APK = "application/vnd.android.package-archive";
     public static final String MIME_TYPE_ZIP = "application/zip";
+    public static final int DEFAULT_TIMEOUT = 30000;
     private static final Map<String, DownloadFinishedCallback> mCallbacks = new HashMap<>();
     private static final XposedApp mApp = XposedApp.getInstance();
     private static final SharedPreferences mPref = mApp
@@ -229,42 +233,92 @@ public class DownloadsUtil {
         callback.onDownloadFinished(context, info);
     }
 
-    public static SyncDownloadInfo downloadSynchronously(String url, File target) {
+    /**
+     * Downloads the file at the given URL. Cancelling the signal aborts the
+     * connection, in which case the partial file is deleted and an
+     * {@link OperationCanceledException} is thrown.
+     */
+    public static SyncDownloadInfo downloadSynchronously(String url, File target,
+                                                         CancellationSignal cancellationSignal) {
+        return downloadSynchronously(url, target, cancellationSignal, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Like {@link #downloadSynchronously(String, File, CancellationSignal)},
+     * with the given connect and read timeout in ms.
+     */
+    public static SyncDownloadInfo downloadSynchronously(String url, File target,
+                                                         CancellationSignal cancellationSignal, int timeout) {
+        return downloadSynchronously(url, url, target, cancellationSignal, timeout);
+    }
+
+    /**
+     * Like {@link #downloadSynchronously(String, File, CancellationSignal, int)},
+     * but remembers the Last-Modified and ETag headers under the given key,
+     * e.g. the repository when downloading from one of its mirrors. They are
+     * only sent again to the URL which returned them, as another mirror may
+     * serve different content under the same validators.
+     */
+    public static SyncDownloadInfo downloadSynchronously(String url, String cacheKey, File target,
+                                                         CancellationSignal cancellationSignal, int timeout) {
         // TODO Potential parameter?
         final boolean useNotModifiedTags = true;
 
         URLConnection connection = null;
         InputStream in = null;
         FileOutputStream out = null;
+        int responseCode = 0;
+        long responseTime = 0;
+        long start = SystemClock.elapsedRealtime();
         try {
             connection = new URL(url).openConnection();
+            if (cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+                if (connection instanceof HttpURLConnection) {
+                    // Unblocks pending reads on the download thread
+                    final HttpURLConnection httpConnection = (HttpURLConnection) connection;
+                    cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                        @Override
+                        public void onCancel() {
+                            httpConnection.disconnect();
+                        }
+                    });
+                }
+            }
             connection.setDoOutput(false);
-            connection.setConnectTimeout(30000);
-            connection.setReadTimeout(30000);
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
 
             if (connection instanceof HttpURLConnection) {
                 // Disable transparent gzip encoding for gzipped files
                 if (url.endsWith(".gz"))
                     connection.addRequestProperty("Accept-Encoding", "identity");
 
-                String modified = mPref.getString("download_" + url + "_modified", null);
-                String etag = mPref.getString("download_" + url + "_etag", null);
+                // Validators stored before the source was recorded came from the key's URL
+                String source = mPref.getString("download_" + cacheKey + "_source", cacheKey);
+                if (url.equals(source)) {
+                    String modified = mPref.getString("download_" + cacheKey + "_modified", null);
+                    String etag = mPref.getString("download_" + cacheKey + "_etag", null);
 
-                if (modified != null)
-                    connection.addRequestProperty("If-Modified-Since", modified);
-                if (etag != null)
-                    connection.addRequestProperty("If-None-Match", etag);
+                    if (modified != null)
+                        connection.addRequestProperty("If-Modified-Since", modified);
+                    if (etag != null)
+                        connection.addRequestProperty("If-None-Match", etag);
+                }
             }
 
             connection.connect();
+            if (cancellationSignal != null)
+                cancellationSignal.throwIfCanceled();
 
             if (connection instanceof HttpURLConnection) {
                 HttpURLConnection httpConnection = (HttpURLConnection) connection;
-                int responseCode = httpConnection.getResponseCode();
+                responseCode = httpConnection.getResponseCode();
+                responseTime = SystemClock.elapsedRealtime() - start;
                 if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
-                    return new SyncDownloadInfo(SyncDownloadInfo.STATUS_NOT_MODIFIED, null);
+                    return new SyncDownloadInfo(SyncDownloadInfo.STATUS_NOT_MODIFIED, responseCode, responseTime, 0, null);
                 } else if (responseCode < 200 || responseCode >= 300) {
-                    return new SyncDownloadInfo(SyncDownloadInfo.STATUS_FAILED,
+                    return new SyncDownloadInfo(SyncDownloadInfo.STATUS_FAILED, responseCode, responseTime, 0,
                             mApp.getString(R.string.repo_download_failed_http,
                                     url, responseCode,
                                     httpConnection.getResponseMessage()));
@@ -275,8 +329,12 @@ public class DownloadsUtil {
             out = new FileOutputStream(target);
             byte buf[] = new byte[1024];
             int read;
+            long bytes = 0;
             while ((read = in.read(buf)) != -1) {
                 out.write(buf, 0, read);
+                bytes += read;
+                if (cancellationSignal != null)
+                    cancellationSignal.throwIfCanceled();
             }
 
             if (connection instanceof HttpURLConnection) {
@@ -285,18 +343,27 @@ public class DownloadsUtil {
                 String etag = httpConnection.getHeaderField("ETag");
 
                 mPref.edit()
-                        .putString("download_" + url + "_modified", modified)
-                        .putString("download_" + url + "_etag", etag).apply();
+                        .putString("download_" + cacheKey + "_modified", modified)
+                        .putString("download_" + cacheKey + "_etag", etag)
+                        .putString("download_" + cacheKey + "_source", url).apply();
             }
 
-            return new SyncDownloadInfo(SyncDownloadInfo.STATUS_SUCCESS, null);
+            return new SyncDownloadInfo(SyncDownloadInfo.STATUS_SUCCESS, responseCode, responseTime, bytes, null);
 
         } catch (Throwable t) {
-            return new SyncDownloadInfo(SyncDownloadInfo.STATUS_FAILED,
+            // Errors caused by the disconnect are reported as cancellation
+            if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                target.delete();
+                throw new OperationCanceledException();
+            }
+
+            return new SyncDownloadInfo(SyncDownloadInfo.STATUS_FAILED, responseCode, responseTime, 0,
                     mApp.getString(R.string.repo_download_failed, url,
                             t.getMessage()));
 
         } finally {
+            if (cancellationSignal != null)
+                cancellationSignal.setOnCancelListener(null);
             if (connection != null && connection instanceof HttpURLConnection)
                 ((HttpURLConnection) connection).disconnect();
             if (in != null)
@@ -315,7 +382,8 @@ public class DownloadsUtil {
     public static void clearCache(String url) {
         if (url != null) {
             mPref.edit().remove("download_" + url + "_modified")
-                    .remove("download_" + url + "_etag").apply();
+                    .remove("download_" + url + "_etag")
+                    .remove("download_" + url + "_source").apply();
         } else {
             mPref.edit().clear().apply();
         }
@@ -389,10 +457,18 @@ public class DownloadsUtil {
         public static final int STATUS_FAILED = 2;
 
         public final int status;
+        // 0 if no HTTP response was received
+        public final int httpStatus;
+        // Time until the response headers were received in ms, 0 if none
+        public final long responseTime;
+        public final long bytes;
         public final String errorMessage;
 
-        private SyncDownloadInfo(int status, String errorMessage) {
+        private SyncDownloadInfo(int status, int httpStatus, long responseTime, long bytes, String errorMessage) {
             this.status = status;
+            this.httpStatus = httpStatus;
+            this.responseTime = responseTime;
+            this.bytes = bytes;
             this.errorMessage = errorMessage;
         }
     }
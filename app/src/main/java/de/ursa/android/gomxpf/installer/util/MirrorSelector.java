@@ -0,0 +1,280 @@
+package de.ursa.android.gomxpf.installer.util;
+
+import android.content.SharedPreferences;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import de.ursa.android.gomxpf.installer.XposedApp;
+
+/**
+ * Remembers the latency and success rate of repository mirrors and decides
+ * in which order they are tried. Both values are exponentially weighted
+ * moving averages, kept per mirror (the URL up to the file name) in the
+ * given preferences, so they survive restarts.
+ */
+public class MirrorSelector {
+    static final float LATENCY_WEIGHT = 0.3f;
+    static final float SUCCESS_WEIGHT = 0.2f;
+    // Mirrors below this success rate are only tried when all others failed
+    static final float MIN_SUCCESS_RATE = 0.5f;
+    static final int DEFAULT_PROBE_TIMEOUT = 5000;
+    // Mirrors which haven't been used for this time are probed again
+    static final long PROBE_INTERVAL = 6 * 60 * 60 * 1000;
+    // How often the cancellation signal is checked while waiting for probes
+    private static final int PROBE_JOIN_INTERVAL = 100;
+
+    private static final String KEY_PREFIX = "mirror_";
+    private static final String KEY_LATENCY = "_latency";
+    private static final String KEY_SUCCESS = "_success";
+    private static final String KEY_CHECKED = "_checked";
+
+    private final SharedPreferences mPref;
+    private final int mProbeTimeout;
+
+    public MirrorSelector(SharedPreferences pref) {
+        this(pref, DEFAULT_PROBE_TIMEOUT);
+    }
+
+    public MirrorSelector(SharedPreferences pref, int probeTimeout) {
+        mPref = pref;
+        mProbeTimeout = probeTimeout;
+    }
+
+    /**
+     * Returns the mirror which serves the given URL, i.e. everything up to
+     * the file name.
+     */
+    public static String getMirror(String url) {
+        int pos = url.lastIndexOf('/');
+        return (pos > 0) ? url.substring(0, pos + 1) : url;
+    }
+
+    public synchronized void recordSuccess(String url, long latency) {
+        String key = KEY_PREFIX + getMirror(url);
+        long oldLatency = mPref.getLong(key + KEY_LATENCY, -1);
+        long newLatency = (oldLatency < 0) ? latency
+                : Math.round(oldLatency + LATENCY_WEIGHT * (latency - oldLatency));
+
+        mPref.edit()
+                .putLong(key + KEY_LATENCY, newLatency)
+                .putFloat(key + KEY_SUCCESS, average(mPref.getFloat(key + KEY_SUCCESS, -1), 1))
+                .putLong(key + KEY_CHECKED, System.currentTimeMillis())
+                .apply();
+    }
+
+    public synchronized void recordFailure(String url) {
+        String key = KEY_PREFIX + getMirror(url);
+        mPref.edit()
+                .putFloat(key + KEY_SUCCESS, average(mPref.getFloat(key + KEY_SUCCESS, -1), 0))
+                .putLong(key + KEY_CHECKED, System.currentTimeMillis())
+                .apply();
+    }
+
+    private static float average(float old, float sample) {
+        return (old < 0) ? sample : old + SUCCESS_WEIGHT * (sample - old);
+    }
+
+    /**
+     * @return the average latency in ms, or -1 if the mirror has never
+     * responded
+     */
+    public synchronized long getLatency(String url) {
+        return mPref.getLong(KEY_PREFIX + getMirror(url) + KEY_LATENCY, -1);
+    }
+
+    /**
+     * @return the average success rate between 0 and 1, or -1 if the mirror
+     * has never been used
+     */
+    public synchronized float getSuccessRate(String url) {
+        return mPref.getFloat(KEY_PREFIX + getMirror(url) + KEY_SUCCESS, -1);
+    }
+
+    public boolean isHealthy(String url) {
+        float successRate = getSuccessRate(url);
+        return successRate < 0 || successRate >= MIN_SUCCESS_RATE;
+    }
+
+    private synchronized boolean isStale(String url) {
+        long checked = mPref.getLong(KEY_PREFIX + getMirror(url) + KEY_CHECKED, 0);
+        return Math.abs(System.currentTimeMillis() - checked) > PROBE_INTERVAL;
+    }
+
+    /**
+     * Returns the URLs in the order they should be tried: healthy mirrors
+     * by latency (unknown latency last), then the others by success rate.
+     */
+    public List<String> order(List<String> urls) {
+        List<String> healthy = new ArrayList<>();
+        List<String> unhealthy = new ArrayList<>();
+        for (String url : urls) {
+            if (isHealthy(url))
+                healthy.add(url);
+            else
+                unhealthy.add(url);
+        }
+
+        Collections.sort(healthy, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                long lhsLatency = getLatency(lhs);
+                long rhsLatency = getLatency(rhs);
+                if (lhsLatency < 0 || rhsLatency < 0)
+                    return (lhsLatency < 0 ? 1 : 0) - (rhsLatency < 0 ? 1 : 0);
+                return (lhsLatency < rhsLatency) ? -1 : (lhsLatency == rhsLatency ? 0 : 1);
+            }
+        });
+        Collections.sort(unhealthy, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return Float.compare(getSuccessRate(rhs), getSuccessRate(lhs));
+            }
+        });
+
+        healthy.addAll(unhealthy);
+        return healthy;
+    }
+
+    /**
+     * Probes all mirrors which haven't been used recently, in parallel, and
+     * returns the URLs in the order they should be tried. A single URL is
+     * returned as it is. Cancelling the signal aborts the pending probes.
+     *
+     * @throws OperationCanceledException if the signal has been cancelled
+     */
+    public List<String> probeAndOrder(List<String> urls, CancellationSignal cancellationSignal) {
+        if (urls.size() <= 1)
+            return urls;
+
+        final List<Probe> probes = new ArrayList<>();
+        cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                synchronized (probes) {
+                    for (Probe probe : probes) {
+                        probe.abort();
+                    }
+                }
+            }
+        });
+
+        try {
+            for (String url : urls) {
+                cancellationSignal.throwIfCanceled();
+                if (!isStale(url))
+                    continue;
+
+                Probe probe = new Probe(url);
+                synchronized (probes) {
+                    probes.add(probe);
+                }
+                probe.start();
+            }
+
+            // Not waiting for aborted probes, which may take a moment to
+            // notice that their connection is gone
+            for (Probe probe : probes) {
+                while (probe.isAlive()) {
+                    cancellationSignal.throwIfCanceled();
+                    probe.join(PROBE_JOIN_INTERVAL);
+                }
+            }
+            cancellationSignal.throwIfCanceled();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            cancellationSignal.setOnCancelListener(null);
+        }
+
+        return order(urls);
+    }
+
+    /**
+     * Sends a HEAD request for the URL and records the result.
+     *
+     * @return the latency in ms, or -1 if the request failed
+     */
+    public long probe(String url) {
+        return probe(url, null);
+    }
+
+    private long probe(String url, Probe owner) {
+        HttpURLConnection connection = null;
+        long start = SystemClock.elapsedRealtime();
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            if (owner != null && !owner.setConnection(connection))
+                return -1;
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(mProbeTimeout);
+            connection.setReadTimeout(mProbeTimeout);
+            int responseCode = connection.getResponseCode();
+            long latency = SystemClock.elapsedRealtime() - start;
+
+            if (responseCode >= 200 && responseCode < 400) {
+                recordSuccess(url, latency);
+                return latency;
+            }
+            Log.w(XposedApp.TAG, "MirrorSelector -> Probe of " + url + " returned HTTP " + responseCode);
+        } catch (IOException | ClassCastException e) {
+            // An aborted probe says nothing about the mirror
+            if (owner != null && owner.isAborted())
+                return -1;
+            Log.w(XposedApp.TAG, "MirrorSelector -> Probe of " + url + " failed: " + e.getMessage());
+        } finally {
+            if (connection != null)
+                connection.disconnect();
+        }
+
+        recordFailure(url);
+        return -1;
+    }
+
+    /**
+     * Runs a single probe and allows to abort its connection from another
+     * thread.
+     */
+    private class Probe extends Thread {
+        private final String mUrl;
+        private HttpURLConnection mConnection;
+        private boolean mAborted = false;
+
+        Probe(String url) {
+            super("MirrorProbe");
+            mUrl = url;
+        }
+
+        @Override
+        public void run() {
+            probe(mUrl, this);
+        }
+
+        /**
+         * @return {@code false} if the probe has already been aborted
+         */
+        synchronized boolean setConnection(HttpURLConnection connection) {
+            mConnection = connection;
+            return !mAborted;
+        }
+
+        synchronized boolean isAborted() {
+            return mAborted;
+        }
+
+        synchronized void abort() {
+            mAborted = true;
+            if (mConnection != null)
+                mConnection.disconnect();
+        }
+    }
+}
@@ -8,17 +8,21 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
+import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.os.FileUtils;
+import android.text.TextUtils;
 import android.util.Log;
 import android.widget.Toast;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import de.ursa.android.gomxpf.installer.ModulesFragment;
@@ -26,6 +30,8 @@ import de.ursa.android.gomxpf.installer.R;
 import de.ursa.android.gomxpf.installer.XposedApp;
 import de.ursa.android.gomxpf.installer.repo.ModuleVersion;
 import de.ursa.android.gomxpf.installer.repo.RepoDb;
+import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.InstalledModulesColumns;
+import de.ursa.android.gomxpf.installer.repo.RepoDbDefinitions.PackageSnapshotColumns;
 
 public final class ModuleUtil {
     // xposedminversion below this
@@ -37,6 +43,23 @@ public final class ModuleUtil {
     private final PackageManager mPm;
     private final String mFrameworkPackageName;
     private final List<ModuleListener> mListeners = new CopyOnWriteArrayList<ModuleListener>();
+    private final CoalescingDispatcher mDispatcher = new CoalescingDispatcher() {
+        @Override
+        protected void onDispatch(Set<String> packageNames) {
+            // A single change is reported as such, everything else as one set
+            if (packageNames.size() == 1) {
+                String packageName = packageNames.iterator().next();
+                InstalledModule module = mInstalledModules.get(packageName);
+                for (ModuleListener listener : mListeners) {
+                    listener.onSingleInstalledModuleReloaded(ModuleUtil.this, packageName, module);
+                }
+            } else {
+                for (ModuleListener listener : mListeners) {
+                    listener.onInstalledModulesReloaded(ModuleUtil.this, packageNames);
+                }
+            }
+        }
+    };
     private SharedPreferences mPref;
     private InstalledModule mFramework = null;
     private Map<String, InstalledModule> mInstalledModules;
@@ -78,26 +101,78 @@ public final class ModuleUtil {
         }
         mApp.updateProgressIndicator(null);
 
+        // Packages are compared with the snapshot from the last scan. Only
+        // changed packages and modules which haven't been loaded yet are
+        // queried again with their meta-data.
+        Map<String, PackageSnapshot> snapshot = loadPackageSnapshot();
+        // The installed modules are kept in the database across processes,
+        // so that only differences have to be written (and update the
+        // overview)
+        Map<String, StoredModule> stored = loadStoredModules();
+        Map<String, InstalledModule> previous = (mInstalledModules != null)
+                ? mInstalledModules : new HashMap<String, InstalledModule>(0);
         Map<String, InstalledModule> modules = new HashMap<String, InstalledModule>();
+        Set<String> changed = new HashSet<String>();
+        int queried = 0;
+
+        // Without a snapshot (first run or cleared data), all packages need
+        // their meta-data, which one bulk call returns much faster
+        boolean queryAll = snapshot.isEmpty();
+
         RepoDb.beginTransation();
         try {
-            RepoDb.deleteAllInstalledModules();
-
-            for (PackageInfo pkg : mPm.getInstalledPackages(PackageManager.GET_META_DATA)) {
-                ApplicationInfo app = pkg.applicationInfo;
-                if (!app.enabled)
+            for (PackageInfo pkg : mPm.getInstalledPackages(queryAll ? PackageManager.GET_META_DATA : 0)) {
+                String packageName = pkg.packageName;
+                PackageSnapshot known = snapshot.remove(packageName);
+                boolean unchanged = known != null && known.matches(pkg);
+                boolean framework = isFramework(packageName);
+                if (unchanged && !known.isModule && !framework)
                     continue;
 
-                InstalledModule installed = null;
-                if (app.metaData != null && app.metaData.containsKey("xposedmodule")) {
-                    installed = new InstalledModule(pkg, false);
-                    modules.put(pkg.packageName, installed);
-                } else if (isFramework(pkg.packageName)) {
-                    mFramework = installed = new InstalledModule(pkg, true);
+                InstalledModule old = framework ? mFramework : previous.get(packageName);
+                InstalledModule installed;
+                if (unchanged && old != null) {
+                    installed = old;
+                } else {
+                    queried++;
+                    PackageInfo full = pkg;
+                    if (!queryAll) {
+                        try {
+                            full = mPm.getPackageInfo(packageName, PackageManager.GET_META_DATA);
+                        } catch (NameNotFoundException e) {
+                            RepoDb.deletePackageSnapshot(packageName);
+                            continue;
+                        }
+                    }
+                    installed = createInstalledModule(full);
+                    updatePackageSnapshot(full, installed);
                 }
 
-                if (installed != null)
+                if (installed == null)
+                    continue;
+                else if (installed.isFramework)
+                    mFramework = installed;
+                else
+                    modules.put(packageName, installed);
+
+                StoredModule known = stored.remove(packageName);
+                if (known == null || !known.matches(installed))
                     RepoDb.insertInstalledModule(installed);
+                if (installed != old)
+                    changed.add(packageName);
+            }
+
+            for (String packageName : snapshot.keySet()) {
+                RepoDb.deletePackageSnapshot(packageName);
+            }
+
+            for (String packageName : stored.keySet()) {
+                RepoDb.deleteInstalledModule(packageName);
+            }
+
+            for (String packageName : previous.keySet()) {
+                if (!modules.containsKey(packageName))
+                    changed.add(packageName);
             }
 
             RepoDb.setTransactionSuccessful();
@@ -105,14 +180,66 @@ public final class ModuleUtil {
             RepoDb.endTransation();
         }
 
+        Log.i(XposedApp.TAG, String.format(
+                "ModuleUtil -> reloaded installed modules (%d queried%s, %d changed)",
+                queried, queryAll ? " in bulk" : "", changed.size()));
+
         mInstalledModules = modules;
         synchronized (this) {
             mIsReloading = false;
         }
         mApp.updateProgressIndicator(null);
-        for (ModuleListener listener : mListeners) {
-            listener.onInstalledModulesReloaded(mInstance);
+        if (changed.isEmpty())
+            return;
+
+        mDispatcher.dispatch(changed);
+    }
+
+    private Map<String, PackageSnapshot> loadPackageSnapshot() {
+        Map<String, PackageSnapshot> snapshot = new HashMap<String, PackageSnapshot>();
+        Cursor c = RepoDb.queryPackageSnapshot();
+        int idxPkgName = c.getColumnIndexOrThrow(PackageSnapshotColumns.PKGNAME);
+        int idxVersionCode = c.getColumnIndexOrThrow(PackageSnapshotColumns.VERSION_CODE);
+        int idxLastUpdateTime = c.getColumnIndexOrThrow(PackageSnapshotColumns.LAST_UPDATE_TIME);
+        int idxEnabled = c.getColumnIndexOrThrow(PackageSnapshotColumns.ENABLED);
+        int idxIsModule = c.getColumnIndexOrThrow(PackageSnapshotColumns.IS_MODULE);
+        while (c.moveToNext()) {
+            snapshot.put(c.getString(idxPkgName), new PackageSnapshot(c.getInt(idxVersionCode),
+                    c.getLong(idxLastUpdateTime), c.getInt(idxEnabled) == 1, c.getInt(idxIsModule) == 1));
+        }
+        c.close();
+        return snapshot;
+    }
+
+    private Map<String, StoredModule> loadStoredModules() {
+        Map<String, StoredModule> stored = new HashMap<String, StoredModule>();
+        Cursor c = RepoDb.queryInstalledModules();
+        int idxPkgName = c.getColumnIndexOrThrow(InstalledModulesColumns.PKGNAME);
+        int idxVersionCode = c.getColumnIndexOrThrow(InstalledModulesColumns.VERSION_CODE);
+        int idxVersionName = c.getColumnIndexOrThrow(InstalledModulesColumns.VERSION_NAME);
+        while (c.moveToNext()) {
+            stored.put(c.getString(idxPkgName), new StoredModule(c.getInt(idxVersionCode), c.getString(idxVersionName)));
         }
+        c.close();
+        return stored;
+    }
+
+    private void updatePackageSnapshot(PackageInfo pkg, InstalledModule installed) {
+        RepoDb.updatePackageSnapshot(pkg.packageName, pkg.versionCode, pkg.lastUpdateTime,
+                pkg.applicationInfo.enabled, installed != null && !installed.isFramework);
+    }
+
+    private InstalledModule createInstalledModule(PackageInfo pkg) {
+        ApplicationInfo app = pkg.applicationInfo;
+        if (!app.enabled)
+            return null;
+
+        if (app.metaData != null && app.metaData.containsKey("xposedmodule"))
+            return new InstalledModule(pkg, false);
+        else if (isFramework(pkg.packageName))
+            return new InstalledModule(pkg, true);
+        else
+            return null;
     }
 
     public InstalledModule reloadSingleModule(String packageName) {
@@ -120,33 +247,27 @@ public final class ModuleUtil {
         try {
             pkg = mPm.getPackageInfo(packageName, PackageManager.GET_META_DATA);
         } catch (NameNotFoundException e) {
+            RepoDb.deletePackageSnapshot(packageName);
             RepoDb.deleteInstalledModule(packageName);
             InstalledModule old = mInstalledModules.remove(packageName);
             if (old != null) {
-                for (ModuleListener listener : mListeners) {
-                    listener.onSingleInstalledModuleReloaded(mInstance, packageName, null);
-                }
+                mDispatcher.dispatch(packageName);
             }
             return null;
         }
 
-        ApplicationInfo app = pkg.applicationInfo;
-        if (app.enabled && app.metaData != null && app.metaData.containsKey("xposedmodule")) {
-            InstalledModule module = new InstalledModule(pkg, false);
+        InstalledModule module = createInstalledModule(pkg);
+        updatePackageSnapshot(pkg, module);
+        if (module != null && !module.isFramework) {
             RepoDb.insertInstalledModule(module);
             mInstalledModules.put(packageName, module);
-            for (ModuleListener listener : mListeners) {
-                listener.onSingleInstalledModuleReloaded(mInstance, packageName,
-                        module);
-            }
+            mDispatcher.dispatch(packageName);
             return module;
         } else {
             RepoDb.deleteInstalledModule(packageName);
             InstalledModule old = mInstalledModules.remove(packageName);
             if (old != null) {
-                for (ModuleListener listener : mListeners) {
-                    listener.onSingleInstalledModuleReloaded(mInstance, packageName, null);
-                }
+                mDispatcher.dispatch(packageName);
             }
             return null;
         }
@@ -262,15 +383,50 @@ public final class ModuleUtil {
 
     public interface ModuleListener {
         /**
-         * Called whenever one (previously or now) installed module has been
-         * reloaded
+         * Called on the main thread whenever one (previously or now)
+         * installed module has been reloaded
          */
         void onSingleInstalledModuleReloaded(ModuleUtil moduleUtil, String packageName, InstalledModule module);
 
         /**
-         * Called whenever all installed modules have been reloaded
+         * Called on the main thread whenever several installed modules have
+         * been added, updated or removed in quick succession, e.g. by a
+         * full reload or a batch install
          */
-        void onInstalledModulesReloaded(ModuleUtil moduleUtil);
+        void onInstalledModulesReloaded(ModuleUtil moduleUtil, Set<String> changedPackages);
+    }
+
+    private static class PackageSnapshot {
+        final int versionCode;
+        final long lastUpdateTime;
+        final boolean enabled;
+        final boolean isModule;
+
+        PackageSnapshot(int versionCode, long lastUpdateTime, boolean enabled, boolean isModule) {
+            this.versionCode = versionCode;
+            this.lastUpdateTime = lastUpdateTime;
+            this.enabled = enabled;
+            this.isModule = isModule;
+        }
+
+        boolean matches(PackageInfo pkg) {
+            return versionCode == pkg.versionCode && lastUpdateTime == pkg.lastUpdateTime
+                    && enabled == pkg.applicationInfo.enabled;
+        }
+    }
+
+    private static class StoredModule {
+        final int versionCode;
+        final String versionName;
+
+        StoredModule(int versionCode, String versionName) {
+            this.versionCode = versionCode;
+            this.versionName = versionName;
+        }
+
+        boolean matches(InstalledModule installed) {
+            return versionCode == installed.versionCode && TextUtils.equals(versionName, installed.versionName);
+        }
     }
 
     public class InstalledModule {
@@ -0,0 +1,142 @@
+package de.ursa.android.gomxpf.installer.util;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A repository reload which may still be running. Only one reload runs at a
+ * time, all callers which trigger a reload meanwhile get the same handle.
+ */
+public class ReloadHandle {
+    /** The reload wasn't necessary or there was no network connection */
+    public static final int STATUS_SKIPPED = 0;
+    public static final int STATUS_COMPLETED = 1;
+    public static final int STATUS_CANCELLED = 2;
+    public static final int STATUS_FAILED = 3;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final CancellationSignal mCancellationSignal = new CancellationSignal();
+    private List<ReloadCallback> mCallbacks = new ArrayList<>();
+    private boolean mDone = false;
+    private int mStatus;
+    private boolean mHasChanged;
+    private List<String> mMessages = Collections.emptyList();
+
+    /* package */ ReloadHandle() {
+    }
+
+    /* package */ static ReloadHandle skipped() {
+        ReloadHandle handle = new ReloadHandle();
+        handle.complete(STATUS_SKIPPED, false, Collections.<String>emptyList());
+        return handle;
+    }
+
+    /* package */ CancellationSignal getCancellationSignal() {
+        return mCancellationSignal;
+    }
+
+    /* package */ void complete(int status, boolean hasChanged, List<String> messages) {
+        final List<ReloadCallback> callbacks;
+        synchronized (this) {
+            if (mDone)
+                return;
+            mDone = true;
+            mStatus = status;
+            mHasChanged = hasChanged;
+            mMessages = Collections.unmodifiableList(new ArrayList<>(messages));
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            notifyAll();
+        }
+
+        for (ReloadCallback callback : callbacks) {
+            post(callback);
+        }
+    }
+
+    private void post(final ReloadCallback callback) {
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onReloadFinished(ReloadHandle.this);
+            }
+        });
+    }
+
+    /**
+     * Adds a callback which is called on the main thread when the reload has
+     * finished, also if that has already happened.
+     *
+     * @return this handle, for chaining
+     */
+    public ReloadHandle addCallback(ReloadCallback callback) {
+        synchronized (this) {
+            if (!mDone) {
+                mCallbacks.add(callback);
+                return this;
+            }
+        }
+        post(callback);
+        return this;
+    }
+
+    /**
+     * Cancels the reload. Changes of the current chunk are rolled back.
+     */
+    public void cancel() {
+        mCancellationSignal.cancel();
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Waits until the reload has finished. Must not be called on the main
+     * thread.
+     *
+     * @return {@code false} if the reload didn't finish in time
+     */
+    public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        while (!mDone) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0)
+                return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * @return one of the {@code STATUS_*} constants, only valid when done
+     */
+    public synchronized int getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return whether any repository was changed, only valid when done
+     */
+    public synchronized boolean hasChanged() {
+        return mHasChanged;
+    }
+
+    /**
+     * @return the error messages of the reload, only valid when done
+     */
+    public synchronized List<String> getMessages() {
+        return mMessages;
+    }
+
+    public interface ReloadCallback {
+        void onReloadFinished(ReloadHandle handle);
+    }
+}
@@ -4,22 +4,42 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.support.v4.widget.SwipeRefreshLayout;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 import android.widget.Toast;
 
+import org.xmlpull.v1.XmlPullParserException;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
@@ -30,24 +50,65 @@ import de.ursa.android.gomxpf.installer.repo.Module;
 import de.ursa.android.gomxpf.installer.repo.ModuleVersion;
 import de.ursa.android.gomxpf.installer.repo.ReleaseType;
 import de.ursa.android.gomxpf.installer.repo.RepoDb;
+import de.ursa.android.gomxpf.installer.repo.RepoDbStats;
 import de.ursa.android.gomxpf.installer.repo.RepoParser;
 import de.ursa.android.gomxpf.installer.repo.RepoParser.RepoParserCallback;
+import de.ursa.android.gomxpf.installer.repo.RepoSyncPipeline;
 import de.ursa.android.gomxpf.installer.repo.Repository;
+import de.ursa.android.gomxpf.installer.repo.SyncRun;
 import de.ursa.android.gomxpf.installer.util.DownloadsUtil.SyncDownloadInfo;
 
 public class RepoLoader {
     private static final int UPDATE_FREQUENCY = 24 * 60 * 60 * 1000;
+    // Repositories are separated by "|", mirrors of a repository by spaces
     private static final String DEFAULT_REPOSITORIES = "http://dl.xposed.info/repo/full.xml.gz";
+    private static final int DEFAULT_SYNC_CHUNK_SIZE = 500;
+    private static final String RELEASE_TYPE_SUFFIX = "_release_type";
+    private static final int DEFAULT_SYNC_QUEUE_CAPACITY = 256;
+    private static final int DEFAULT_DOWNLOAD_CONCURRENCY = 3;
+    private static final int CANCEL_TIMEOUT = 2000;
+    private static final int DOWNLOAD_POLL_INTERVAL = 200;
+    // Timeout for mirrors which have another one to fall back to
+    private static final int MIRROR_TIMEOUT = 10000;
+    private static final int MODULE_CACHE_SIZE = 32;
     private static RepoLoader mInstance = null;
     private final List<RepoListener> mListeners = new CopyOnWriteArrayList<>();
-    private final Map<String, ReleaseType> mLocalReleaseTypesCache = new HashMap<>();
+    private final CoalescingDispatcher mDispatcher = new CoalescingDispatcher() {
+        @Override
+        protected void onDispatch(Set<String> packageNames) {
+            for (RepoListener listener : mListeners) {
+                listener.onRepoReloaded(RepoLoader.this);
+            }
+        }
+    };
+    // Release types set explicitly per package. The map is never modified,
+    // changes replace it, so it can be read without locking.
+    private volatile Map<String, ReleaseType> mLocalReleaseTypes;
+    private final Object mLocalReleaseTypesLock = new Object();
+    private final LruCache<String, Module> mModuleCache = new LruCache<>(MODULE_CACHE_SIZE);
+    private int mModuleCacheGeneration = 0;
+    // Modules changed by the running sync. They are only invalidated once
+    // the change has been committed, as the read connection of RepoDb
+    // doesn't see it before and would cache the old data again.
+    private final Set<String> mUncommittedModules = new HashSet<>();
+    private boolean mUncommittedAllModules = false;
     private XposedApp mApp = null;
     private SharedPreferences mPref;
     private SharedPreferences mModulePref;
     private ConnectivityManager mConMgr;
-    private boolean mIsLoading = false;
+    // Reloads run one after another on this thread
+    private final ExecutorService mReloadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "RepositoryReload");
+        }
+    });
+    private ReloadHandle mCurrentReload = null;
     private boolean mReloadTriggeredOnce = false;
     private Map<Long, Repository> mRepositories = null;
+    // All mirrors of a repository by its URL, starting with the URL itself
+    private volatile Map<String, List<String>> mMirrors = Collections.emptyMap();
+    private MirrorSelector mMirrorSelector;
     private ReleaseType mGlobalReleaseType;
     private SwipeRefreshLayout mSwipeRefreshLayout;
 
@@ -56,8 +117,12 @@ public class RepoLoader {
         mApp = XposedApp.getInstance();
         mPref = mApp.getSharedPreferences("repo", Context.MODE_PRIVATE);
         mModulePref = mApp.getSharedPreferences("module_settings", Context.MODE_PRIVATE);
+        mLocalReleaseTypes = loadReleaseTypesLocal();
         mConMgr = (ConnectivityManager) mApp.getSystemService(Context.CONNECTIVITY_SERVICE);
+        mMirrorSelector = new MirrorSelector(mApp.getSharedPreferences("mirrors", Context.MODE_PRIVATE));
         mGlobalReleaseType = ReleaseType.fromString(XposedApp.getPreferences().getString("release_type_global", "stable"));
+        RepoDbStats.setSlowThresholdMs(Integer.parseInt(XposedApp.getPreferences().getString("db_slow_threshold",
+                Integer.toString(RepoDbStats.DEFAULT_SLOW_THRESHOLD_MS))));
 
         RepoDb.init(mApp, this);
         refreshRepositories();
@@ -75,7 +140,17 @@ public class RepoLoader {
 		// Unlikely case (usually only during initial load): DB state doesn't
 		// fit to configuration
 		boolean needReload = false;
-        String[] config = mPref.getString("repositories", DEFAULT_REPOSITORIES).split("\\|");
+        String[] entries = mPref.getString("repositories", DEFAULT_REPOSITORIES).split("\\|");
+        String[] config = new String[entries.length];
+        Map<String, List<String>> mirrors = new HashMap<>();
+        for (int i = 0; i < entries.length; i++) {
+            List<String> urls = Arrays.asList(entries[i].trim().split("\\s+"));
+            config[i] = urls.get(0);
+            mirrors.put(config[i], Collections.unmodifiableList(urls));
+        }
+        // Mirrors can be changed without reloading the repositories
+        mMirrors = mirrors;
+
         if (mRepositories.size() != config.length) {
             needReload = true;
         } else {
@@ -92,8 +167,9 @@ public class RepoLoader {
             return false;
 
         clear(false);
-        for (String url : config) {
-            RepoDb.insertRepository(url);
+        // Modules from repositories listed first are preferred
+        for (int i = 0; i < config.length; i++) {
+            RepoDb.insertRepository(config[i], config.length - i);
         }
         mRepositories = RepoDb.getRepositories();
         return true;
@@ -105,6 +181,7 @@ public class RepoLoader {
             return;
 
         mGlobalReleaseType = relType;
+        invalidateAllModules();
 
         // Updating the latest version for all modules takes a moment
         new Thread("DBUpdate") {
@@ -119,47 +196,147 @@ public class RepoLoader {
     public void setReleaseTypeLocal(String packageName, String relTypeString) {
         ReleaseType relType = (!TextUtils.isEmpty(relTypeString)) ? ReleaseType.fromString(relTypeString) : null;
 
-        if (getReleaseTypeLocal(packageName) == relType)
-            return;
+        synchronized (mLocalReleaseTypesLock) {
+            if (mLocalReleaseTypes.get(packageName) == relType)
+                return;
 
-        synchronized (mLocalReleaseTypesCache) {
-            mLocalReleaseTypesCache.put(packageName, relType);
+            Map<String, ReleaseType> releaseTypes = new HashMap<>(mLocalReleaseTypes);
+            if (relType != null)
+                releaseTypes.put(packageName, relType);
+            else
+                releaseTypes.remove(packageName);
+            mLocalReleaseTypes = Collections.unmodifiableMap(releaseTypes);
         }
 
         RepoDb.updateModuleLatestVersion(packageName);
+        invalidateModule(packageName);
         notifyListeners();
     }
 
     private ReleaseType getReleaseTypeLocal(String packageName) {
-        synchronized (mLocalReleaseTypesCache) {
-            if (mLocalReleaseTypesCache.containsKey(packageName))
-                return mLocalReleaseTypesCache.get(packageName);
+        return mLocalReleaseTypes.get(packageName);
+    }
+
+    private static ReleaseType parseReleaseTypeLocal(String value) {
+        return (!TextUtils.isEmpty(value)) ? ReleaseType.fromString(value) : null;
+    }
+
+    /**
+     * Returns all packages for which a release type has been set explicitly.
+     * The map is immutable, later changes don't affect it.
+     */
+    public Map<String, ReleaseType> getReleaseTypesLocal() {
+        return mLocalReleaseTypes;
+    }
+
+    private Map<String, ReleaseType> loadReleaseTypesLocal() {
+        Map<String, ReleaseType> result = new HashMap<>();
+        for (Entry<String, ?> entry : mModulePref.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (!key.endsWith(RELEASE_TYPE_SUFFIX) || !(entry.getValue() instanceof String))
+                continue;
 
-            String value = mModulePref.getString(packageName + "_release_type",
-                    null);
-            ReleaseType result = (!TextUtils.isEmpty(value)) ? ReleaseType.fromString(value) : null;
-            mLocalReleaseTypesCache.put(packageName, result);
-            return result;
+            ReleaseType relType = parseReleaseTypeLocal((String) entry.getValue());
+            if (relType != null)
+                result.put(key.substring(0, key.length() - RELEASE_TYPE_SUFFIX.length()), relType);
         }
+        return Collections.unmodifiableMap(result);
+    }
+
+    public ReleaseType getReleaseTypeGlobal() {
+        return mGlobalReleaseType;
     }
 
     public Repository getRepository(long repoId) {
         return mRepositories.get(repoId);
     }
 
+    /**
+     * Returns the module with the given package name. Recently used modules
+     * are cached, so they must not be modified by the caller.
+     */
     public Module getModule(String packageName) {
-        return RepoDb.getModuleByPackageName(packageName);
+        int generation;
+        synchronized (mModuleCache) {
+            Module module = mModuleCache.get(packageName);
+            if (module != null)
+                return module;
+            generation = mModuleCacheGeneration;
+        }
+
+        Module module = RepoDb.getModuleByPackageName(packageName);
+        if (module == null)
+            return null;
+
+        synchronized (mModuleCache) {
+            // Don't cache a module which has been changed while loading it
+            if (generation == mModuleCacheGeneration)
+                mModuleCache.put(packageName, module);
+        }
+        return module;
+    }
+
+    private void invalidateModule(String packageName) {
+        synchronized (mModuleCache) {
+            mModuleCache.remove(packageName);
+            mModuleCacheGeneration++;
+        }
+    }
+
+    private void invalidateAllModules() {
+        synchronized (mModuleCache) {
+            mModuleCache.evictAll();
+            mModuleCacheGeneration++;
+        }
+    }
+
+    private void invalidateModuleOnCommit(String packageName) {
+        synchronized (mUncommittedModules) {
+            mUncommittedModules.add(packageName);
+        }
+    }
+
+    private void invalidateAllModulesOnCommit() {
+        synchronized (mUncommittedModules) {
+            mUncommittedAllModules = true;
+        }
+    }
+
+    /**
+     * Invalidates the modules which have been changed since the last call.
+     * Must be called after each commit of a sync and after its transaction
+     * has ended, also if it was rolled back.
+     */
+    private void invalidateCommittedModules() {
+        List<String> packageNames;
+        boolean all;
+        synchronized (mUncommittedModules) {
+            packageNames = new ArrayList<>(mUncommittedModules);
+            all = mUncommittedAllModules;
+            mUncommittedModules.clear();
+            mUncommittedAllModules = false;
+        }
+
+        if (all) {
+            invalidateAllModules();
+        } else {
+            for (String packageName : packageNames) {
+                invalidateModule(packageName);
+            }
+        }
     }
 
     public ModuleVersion getLatestVersion(Module module) {
         if (module == null || module.versions.isEmpty())
             return null;
 
+        ModuleVersion latest = null;
         for (ModuleVersion version : module.versions) {
-            if (version.downloadLink != null && isVersionShown(version))
-                return version;
+            if (version.downloadLink != null && isVersionShown(version)
+                    && (latest == null || version.code > latest.code))
+                latest = version;
         }
-        return null;
+        return latest;
     }
 
     public boolean isVersionShown(ModuleVersion version) {
@@ -175,63 +352,95 @@ public class RepoLoader {
             return mGlobalReleaseType;
     }
 
-    public void triggerReload(final boolean force) {
+    /**
+     * Starts a reload of all repositories, unless the last one was recent
+     * enough and {@code force} isn't set. If a reload is already running,
+     * its handle is returned instead of starting another one.
+     */
+    public ReloadHandle triggerReload(final boolean force) {
         mReloadTriggeredOnce = true;
 
-        if (force) {
+        if (force)
             resetLastUpdateCheck();
-        } else {
-            long lastUpdateCheck = mPref.getLong("last_update_check", 0);
-            if (System.currentTimeMillis() < lastUpdateCheck + UPDATE_FREQUENCY)
-                return;
-        }
-
-        NetworkInfo netInfo = mConMgr.getActiveNetworkInfo();
-        if (netInfo == null || !netInfo.isConnected())
-            return;
 
+        final ReloadHandle handle;
         synchronized (this) {
-            if (mIsLoading)
-                return;
-            mIsLoading = true;
+            if (mCurrentReload != null)
+                return mCurrentReload;
+
+            if (!force) {
+                long lastUpdateCheck = mPref.getLong("last_update_check", 0);
+                if (System.currentTimeMillis() < lastUpdateCheck + UPDATE_FREQUENCY)
+                    return ReloadHandle.skipped();
+            }
+
+            NetworkInfo netInfo = mConMgr.getActiveNetworkInfo();
+            if (netInfo == null || !netInfo.isConnected())
+                return ReloadHandle.skipped();
+
+            handle = new ReloadHandle();
+            mCurrentReload = handle;
         }
         mApp.updateProgressIndicator(mSwipeRefreshLayout);
 
-        new Thread("RepositoryReload") {
+        mReloadExecutor.execute(new Runnable() {
+            @Override
             public void run() {
-                final List<String> messages = new LinkedList<>();
-                boolean hasChanged = downloadAndParseFiles(messages);
-
-                mPref.edit().putLong("last_update_check", System.currentTimeMillis()).apply();
-
-                if (!messages.isEmpty()) {
-                    XposedApp.runOnUiThread(new Runnable() {
-                        public void run() {
-                            for (String message : messages) {
-                                Toast.makeText(mApp, message, Toast.LENGTH_LONG).show();
-                            }
-                        }
-                    });
+                int status = ReloadHandle.STATUS_FAILED;
+                boolean hasChanged = false;
+                List<String> messages = new LinkedList<>();
+                try {
+                    hasChanged = reload(handle.getCancellationSignal(), messages);
+                    status = ReloadHandle.STATUS_COMPLETED;
+                } catch (OperationCanceledException e) {
+                    Log.i(XposedApp.TAG, "RepoLoader -> Reload was cancelled");
+                    status = ReloadHandle.STATUS_CANCELLED;
+                } finally {
+                    // Callbacks may already trigger the next reload
+                    synchronized (RepoLoader.this) {
+                        mCurrentReload = null;
+                        RepoLoader.this.notifyAll();
+                    }
+                    handle.complete(status, hasChanged, messages);
+                    mApp.updateProgressIndicator(mSwipeRefreshLayout);
                 }
+            }
+        });
+        return handle;
+    }
+
+    private boolean reload(CancellationSignal cancellationSignal, final List<String> messages) {
+        boolean hasChanged = downloadAndParseFiles(messages, cancellationSignal);
 
-                if (hasChanged)
-                    notifyListeners();
+        mPref.edit().putLong("last_update_check", System.currentTimeMillis()).apply();
 
-                synchronized (this) {
-                    mIsLoading = false;
+        if (!messages.isEmpty()) {
+            XposedApp.runOnUiThread(new Runnable() {
+                public void run() {
+                    for (String message : messages) {
+                        Toast.makeText(mApp, message, Toast.LENGTH_LONG).show();
+                    }
                 }
-                mApp.updateProgressIndicator(mSwipeRefreshLayout);
-            }
-        }.start();
+            });
+        }
+
+        if (hasChanged)
+            notifyListeners();
+        return hasChanged;
     }
 
     public void setSwipeRefreshLayout(SwipeRefreshLayout mSwipeRefreshLayout) {
         this.mSwipeRefreshLayout = mSwipeRefreshLayout;
     }
 
-    public void triggerFirstLoadIfNecessary() {
+    /**
+     * @return the handle of the reload, or {@code null} if a reload has
+     * already been triggered before
+     */
+    public ReloadHandle triggerFirstLoadIfNecessary() {
         if (!mReloadTriggeredOnce)
-            triggerReload(false);
+            return triggerReload(false);
+        return null;
     }
 
     public void resetLastUpdateCheck() {
@@ -239,17 +448,17 @@ public class RepoLoader {
     }
 
     public synchronized boolean isLoading() {
-        return mIsLoading;
+        return mCurrentReload != null;
     }
 
     public void clear(boolean notify) {
         synchronized (this) {
-            // TODO Stop reloading repository when it should be cleared
-            if (mIsLoading)
+            if (mCurrentReload != null && !cancelReload())
                 return;
 
             RepoDb.deleteRepositories();
             mRepositories = new LinkedHashMap<Long, Repository>(0);
+            invalidateAllModules();
             DownloadsUtil.clearCache(null);
             resetLastUpdateCheck();
         }
@@ -258,6 +467,38 @@ public class RepoLoader {
             notifyListeners();
     }
 
+    /**
+     * Cancels the running reload and waits until it has rolled back.
+     * Must be called while holding the lock of this loader.
+     *
+     * @return {@code false} if the reload didn't stop in time
+     */
+    private boolean cancelReload() {
+        mCurrentReload.cancel();
+
+        long deadline = SystemClock.elapsedRealtime() + CANCEL_TIMEOUT;
+        boolean interrupted = false;
+        while (mCurrentReload != null) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                Log.w(XposedApp.TAG, "RepoLoader -> Reload did not stop within " + CANCEL_TIMEOUT + " ms");
+                break;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        return mCurrentReload == null;
+    }
+
+    /**
+     * Sets the repository URLs. Each of them may be followed by mirrors,
+     * separated by spaces.
+     */
     public void setRepositories(String... repos) {
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < repos.length; i++) {
@@ -285,104 +526,453 @@ public class RepoLoader {
         return new File(mApp.getCacheDir(), filename);
     }
 
-    private boolean downloadAndParseFiles(List<String> messages) {
-        // These variables don't need to be atomic, just mutable
+    /**
+     * Returns the URLs from which the given file of a repository can be
+     * downloaded, starting with the original one. Mirrors are expected to
+     * have the same layout, so files below the directory of the repository
+     * URL are mapped to each mirror.
+     */
+    private List<String> getMirrorUrls(Repository repo, String url) {
+        List<String> mirrors = mMirrors.get(repo.url);
+        if (mirrors == null || mirrors.size() <= 1)
+            return Collections.singletonList(url);
+
+        String base = MirrorSelector.getMirror(repo.url);
+        if (!url.startsWith(base))
+            return Collections.singletonList(url);
+
+        List<String> urls = new ArrayList<>(mirrors.size());
+        urls.add(url);
+        for (int i = 1; i < mirrors.size(); i++) {
+            urls.add(MirrorSelector.getMirror(mirrors.get(i)) + url.substring(base.length()));
+        }
+        return urls;
+    }
+
+    private boolean downloadAndParseFiles(List<String> messages, CancellationSignal cancellationSignal) {
+        // These variables are also updated by the writer thread in pipelined mode
         final AtomicBoolean hasChanged = new AtomicBoolean(false);
         final AtomicInteger insertCounter = new AtomicInteger();
+        final AtomicInteger updateCounter = new AtomicInteger();
         final AtomicInteger deleteCounter = new AtomicInteger();
+        final RepoDb.BulkWriter writer = RepoDb.openBulkWriter();
+        // Full repositories are compared with the stored modules, so that
+        // unchanged modules don't have to be written again
+        final boolean differential = mPref.getBoolean("sync_differential", true);
+        SyncRun run = new SyncRun();
+        run.started = System.currentTimeMillis();
+        long runStart = SystemClock.elapsedRealtime();
+
+        // All repositories are downloaded in parallel, each one is parsed
+        // as soon as its download has finished
+        int concurrency = Math.max(1, Math.min(mRepositories.size(),
+                mPref.getInt("sync_download_concurrency", DEFAULT_DOWNLOAD_CONCURRENCY)));
+        ExecutorService downloadExecutor = Executors.newFixedThreadPool(concurrency);
+        CompletionService<RepoDownload> downloads = new ExecutorCompletionService<>(downloadExecutor);
+        // Each download has its own signal, as only one listener can be set
+        final List<CancellationSignal> downloadSignals = new ArrayList<>();
+        // Downloads which haven't been parsed yet
+        Map<Future<RepoDownload>, RepoDownload> unparsed = new HashMap<>();
+
+        try {
+            for (Entry<Long, Repository> repoEntry : mRepositories.entrySet()) {
+                Repository repo = repoEntry.getValue();
+                String url = (repo.partialUrl != null && repo.version != null) ? String.format(repo.partialUrl, repo.version) : repo.url;
+                CancellationSignal downloadSignal = new CancellationSignal();
+                downloadSignals.add(downloadSignal);
+                RepoDownload download = new RepoDownload(repoEntry.getKey(), repo, url,
+                        getMirrorUrls(repo, url), getRepoCacheFile(url), mMirrorSelector, downloadSignal);
+                unparsed.put(downloads.submit(download), download);
+            }
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    for (CancellationSignal downloadSignal : downloadSignals) {
+                        downloadSignal.cancel();
+                    }
+                }
+            });
+
+            while (!unparsed.isEmpty()) {
+                RepoDownload download;
+                Future<RepoDownload> result = null;
+                try {
+                    // Polled, as cancelling doesn't interrupt this thread
+                    while (result == null) {
+                        cancellationSignal.throwIfCanceled();
+                        result = downloads.poll(DOWNLOAD_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    }
+                    download = result.get();
+                    cancellationSignal.throwIfCanceled();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    // Not expected, download errors are reported in the result
+                    Log.e(XposedApp.TAG, "RepoLoader -> Download failed", e.getCause());
+                    unparsed.remove(result);
+                    continue;
+                }
+                unparsed.remove(result);
+
+                final long repoId = download.repoId;
+                final Repository repo = download.repo;
+                String url = download.url;
+                File cacheFile = download.cacheFile;
+                SyncDownloadInfo info = download.info;
+
+                Log.i(XposedApp.TAG, String.format(
+                        "RepoLoader -> Downloaded %s from %s with status %d (error: %s), size %d bytes in %d ms",
+                        url, download.sourceUrl, info.status, info.errorMessage, cacheFile.length(), download.duration));
+
+                run.repositories++;
+                run.downloadTime += download.duration;
+                run.downloadBytes += info.bytes;
+                if (info.httpStatus != 0)
+                    run.addHttpStatus(info.httpStatus);
+                if (info.status == SyncDownloadInfo.STATUS_NOT_MODIFIED)
+                    run.notModified++;
+                else if (info.status == SyncDownloadInfo.STATUS_FAILED)
+                    run.failed++;
+
+                if (info.status != SyncDownloadInfo.STATUS_SUCCESS) {
+                    if (info.errorMessage != null)
+                        messages.add(info.errorMessage);
+                    continue;
+                }
+
+                InputStream in = null;
+                try {
+                    in = new FileInputStream(cacheFile);
+                    if (url.endsWith(".gz"))
+                        in = new GZIPInputStream(in);
+
+                    TimingInputStream timedIn = new TimingInputStream(in);
+                    in = timedIn;
+
+                    insertCounter.set(0);
+                    updateCounter.set(0);
+                    deleteCounter.set(0);
+                    parse(timedIn, cancellationSignal, run, new RepoParserCallback() {
+                        private boolean mDiffing = false;
+
+                        @Override
+                        public void onRepositoryMetadata(Repository repository) {
+                            if (repository.isPartial) {
+                                return;
+                            } else if (differential) {
+                                writer.beginDiff(repoId);
+                                mDiffing = true;
+                            } else {
+                                RepoDb.deleteAllModules(repoId);
+                                invalidateAllModulesOnCommit();
+                                hasChanged.set(true);
+                            }
+                        }
 
-        for (Entry<Long, Repository> repoEntry : mRepositories.entrySet()) {
-            final long repoId = repoEntry.getKey();
-            final Repository repo = repoEntry.getValue();
+                        @Override
+                        public void onNewModule(Module module) {
+                            if (!mDiffing) {
+                                writer.insertModule(repoId, module);
+                                invalidateModuleOnCommit(module.packageName);
+                                hasChanged.set(true);
+                                insertCounter.incrementAndGet();
+                                return;
+                            }
 
-            String url = (repo.partialUrl != null && repo.version != null) ? String.format(repo.partialUrl, repo.version) : repo.url;
+                            switch (writer.applyModule(repoId, module)) {
+                                case RepoDb.BulkWriter.RESULT_INSERTED:
+                                    invalidateModuleOnCommit(module.packageName);
+                                    insertCounter.incrementAndGet();
+                                    hasChanged.set(true);
+                                    break;
+                                case RepoDb.BulkWriter.RESULT_UPDATED:
+                                    invalidateModuleOnCommit(module.packageName);
+                                    updateCounter.incrementAndGet();
+                                    hasChanged.set(true);
+                                    break;
+                            }
+                        }
+
+                        @Override
+                        public void onRemoveModule(String packageName) {
+                            RepoDb.deleteModule(repoId, packageName);
+                            invalidateModuleOnCommit(packageName);
+                            hasChanged.set(true);
+                            deleteCounter.incrementAndGet();
+                        }
 
-            File cacheFile = getRepoCacheFile(url);
-            SyncDownloadInfo info = DownloadsUtil.downloadSynchronously(url,
-                    cacheFile);
+                        @Override
+                        public void onCompleted(Repository repository) {
+                            if (mDiffing) {
+                                Set<String> removed = writer.finishDiff();
+                                for (String packageName : removed) {
+                                    invalidateModuleOnCommit(packageName);
+                                }
+                                if (!removed.isEmpty()) {
+                                    deleteCounter.addAndGet(removed.size());
+                                    hasChanged.set(true);
+                                }
+                                mDiffing = false;
+                            }
 
-            Log.i(XposedApp.TAG, String.format(
-                    "RepoLoader -> Downloaded %s with status %d (error: %s), size %d bytes",
-                    url, info.status, info.errorMessage, cacheFile.length()));
+                            if (!repository.isPartial) {
+                                RepoDb.updateRepository(repoId, repository);
+                                repo.name = repository.name;
+                                repo.partialUrl = repository.partialUrl;
+                                repo.version = repository.version;
+                            } else {
+                                RepoDb.updateRepositoryVersion(repoId, repository.version);
+                                repo.version = repository.version;
+                            }
 
-            if (info.status != SyncDownloadInfo.STATUS_SUCCESS) {
-                if (info.errorMessage != null)
-                    messages.add(info.errorMessage);
-                continue;
+                            Log.i(XposedApp.TAG, String.format(
+                                    "RepoLoader -> Updated repository %s to version %s (%d new / %d changed / %d removed modules)",
+                                    repo.url, repo.version, insertCounter.get(),
+                                    updateCounter.get(), deleteCounter.get()));
+                        }
+                    });
+                    run.inserted += insertCounter.get();
+                    run.updated += updateCounter.get();
+                    run.deleted += deleteCounter.get();
+
+                } catch (OperationCanceledException e) {
+                    // Make sure the file is downloaded and parsed again
+                    DownloadsUtil.clearCache(url);
+                    throw e;
+
+                } catch (Throwable t) {
+                    Log.e(XposedApp.TAG, "RepoLoader -> Cannot load repository from " + url, t);
+                    run.failed++;
+                    messages.add(mApp.getString(R.string.repo_load_failed, url,
+                            t.getMessage()));
+                    messages.add("Clear app data!!");
+                    DownloadsUtil.clearCache(url);
+
+                } finally {
+                    if (in != null)
+                        try {
+                            in.close();
+                        } catch (IOException ignored) {
+                        }
+                    cacheFile.delete();
+                }
+            }
+        } finally {
+            cancellationSignal.setOnCancelListener(null);
+            writer.close();
+            downloadExecutor.shutdownNow();
+            // Make sure that skipped repositories are downloaded again
+            for (RepoDownload download : unparsed.values()) {
+                DownloadsUtil.clearCache(download.url);
             }
+        }
+
+        if (hasChanged.get()) {
+            long start = SystemClock.elapsedRealtime();
+            int changed = RepoDb.resolvePreferredModules();
+            run.writeTime += SystemClock.elapsedRealtime() - start;
+            if (changed > 0) {
+                Log.i(XposedApp.TAG, "RepoLoader -> Changed preferred state of " + changed + " modules");
+                invalidateAllModules();
+            }
+        }
+
+        run.totalTime = SystemClock.elapsedRealtime() - runStart;
+        RepoDb.insertSyncRun(run);
 
-            InputStream in = null;
+        return hasChanged.get();
+    }
+
+    /**
+     * Downloads a repository into its cache file. The mirrors are tried
+     * in the order chosen by the selector until one of them responds.
+     */
+    private static class RepoDownload implements Callable<RepoDownload> {
+        final long repoId;
+        final Repository repo;
+        final String url;
+        final List<String> mirrorUrls;
+        final File cacheFile;
+        final MirrorSelector mirrorSelector;
+        final CancellationSignal cancellationSignal;
+        String sourceUrl;
+        SyncDownloadInfo info;
+        long duration;
+
+        RepoDownload(long repoId, Repository repo, String url, List<String> mirrorUrls, File cacheFile,
+                     MirrorSelector mirrorSelector, CancellationSignal cancellationSignal) {
+            this.repoId = repoId;
+            this.repo = repo;
+            this.url = url;
+            this.mirrorUrls = mirrorUrls;
+            this.cacheFile = cacheFile;
+            this.mirrorSelector = mirrorSelector;
+            this.cancellationSignal = cancellationSignal;
+        }
+
+        @Override
+        public RepoDownload call() {
+            long start = SystemClock.elapsedRealtime();
+            List<String> urls = mirrorSelector.probeAndOrder(mirrorUrls, cancellationSignal);
+            for (int i = 0; i < urls.size(); i++) {
+                cancellationSignal.throwIfCanceled();
+                sourceUrl = urls.get(i);
+                boolean isLast = (i == urls.size() - 1);
+                // Cached per repository, so that a 304 only confirms what was parsed
+                info = DownloadsUtil.downloadSynchronously(sourceUrl, url, cacheFile, cancellationSignal,
+                        isLast ? DownloadsUtil.DEFAULT_TIMEOUT : MIRROR_TIMEOUT);
+
+                if (info.status != SyncDownloadInfo.STATUS_FAILED) {
+                    mirrorSelector.recordSuccess(sourceUrl, info.responseTime);
+                    break;
+                }
+
+                mirrorSelector.recordFailure(sourceUrl);
+                if (!isLast)
+                    Log.w(XposedApp.TAG, "RepoLoader -> Download from " + sourceUrl
+                            + " failed, trying " + urls.get(i + 1));
+            }
+            duration = SystemClock.elapsedRealtime() - start;
+            return this;
+        }
+    }
+
+    /**
+     * Parses the repository and adds the time spent reading, parsing and
+     * writing to the given run.
+     */
+    private void parse(TimingInputStream in, CancellationSignal cancellationSignal, SyncRun run,
+                       RepoParserCallback target) throws XmlPullParserException, IOException {
+        TimedRepoParserCallback callback = new TimedRepoParserCallback(target);
+        boolean pipelined = mPref.getBoolean("sync_pipelined", true);
+        long start = SystemClock.elapsedRealtime();
+
+        parse(in, cancellationSignal, callback, pipelined);
+
+        // Writes only block parsing if they run on the same thread
+        long duration = SystemClock.elapsedRealtime() - start;
+        long readTime = in.getReadTimeMillis();
+        long writeTime = callback.getTimeMillis();
+        run.decompressTime += readTime;
+        run.writeTime += writeTime;
+        run.parseTime += Math.max(0, duration - readTime - (pipelined ? 0 : writeTime));
+    }
+
+    private void parse(InputStream in, CancellationSignal cancellationSignal,
+                       final RepoParserCallback callback, boolean pipelined) throws XmlPullParserException, IOException {
+        // Modules are imported in flat transactions of this size, so an abort
+        // only loses the current chunk. 0 means one transaction per repository.
+        final int chunkSize = mPref.getInt("sync_chunk_size", DEFAULT_SYNC_CHUNK_SIZE);
+
+        if (!pipelined) {
+            final long start = System.currentTimeMillis();
+            final AtomicInteger count = new AtomicInteger();
+            final AtomicInteger commits = new AtomicInteger();
             RepoDb.beginTransation();
             try {
-                in = new FileInputStream(cacheFile);
-                if (url.endsWith(".gz"))
-                    in = new GZIPInputStream(in);
-
                 RepoParser.parse(in, new RepoParserCallback() {
                     @Override
                     public void onRepositoryMetadata(Repository repository) {
-                        if (!repository.isPartial) {
-                            RepoDb.deleteAllModules(repoId);
-                            hasChanged.set(true);
-                        }
+                        callback.onRepositoryMetadata(repository);
                     }
 
                     @Override
                     public void onNewModule(Module module) {
-                        RepoDb.insertModule(repoId, module);
-                        hasChanged.set(true);
-                        insertCounter.incrementAndGet();
+                        callback.onNewModule(module);
+                        int imported = count.incrementAndGet();
+                        if (chunkSize > 0 && imported % chunkSize == 0) {
+                            RepoDb.commitTransaction();
+                            invalidateCommittedModules();
+                            commits.incrementAndGet();
+                        }
                     }
 
                     @Override
                     public void onRemoveModule(String packageName) {
-                        RepoDb.deleteModule(repoId, packageName);
-                        hasChanged.set(true);
-                        deleteCounter.decrementAndGet();
+                        callback.onRemoveModule(packageName);
                     }
 
                     @Override
                     public void onCompleted(Repository repository) {
-                        if (!repository.isPartial) {
-                            RepoDb.updateRepository(repoId, repository);
-                            repo.name = repository.name;
-                            repo.partialUrl = repository.partialUrl;
-                            repo.version = repository.version;
-                        } else {
-                            RepoDb.updateRepositoryVersion(repoId, repository.version);
-                            repo.version = repository.version;
-                        }
+                        callback.onCompleted(repository);
+                    }
+                }, cancellationSignal);
+                RepoDb.setTransactionSuccessful();
+                commits.incrementAndGet();
+            } finally {
+                RepoDb.endTransation();
+                invalidateCommittedModules();
+            }
+
+            long duration = Math.max(1, System.currentTimeMillis() - start);
+            Log.i(XposedApp.TAG, String.format(
+                    "RepoLoader -> Imported %d modules in %d ms (%.1f/s, %d commits)",
+                    count.get(), duration, count.get() * 1000f / duration, commits.get()));
+            return;
+        }
 
-                        Log.i(XposedApp.TAG, String.format(
-                                "RepoLoader -> Updated repository %s to version %s (%d new / %d removed modules)",
-                                repo.url, repo.version, insertCounter.get(),
-                                deleteCounter.get()));
+        // Parse on this thread while a separate thread writes to the database
+        RepoSyncPipeline pipeline = new RepoSyncPipeline(callback, chunkSize,
+                DEFAULT_SYNC_QUEUE_CAPACITY, new Runnable() {
+                    @Override
+                    public void run() {
+                        invalidateCommittedModules();
                     }
                 });
+        pipeline.start();
+        try {
+            RepoParser.parse(in, pipeline, cancellationSignal);
+        } catch (Throwable t) {
+            pipeline.abort();
+            throw t;
+        }
+        pipeline.finish();
+    }
 
-                RepoDb.setTransactionSuccessful();
+    /**
+     * Measures the time spent in the wrapped callback, i.e. in the database
+     * writes. It must only be called from one thread.
+     */
+    private static class TimedRepoParserCallback implements RepoParserCallback {
+        private final RepoParserCallback mTarget;
+        private long mNanos = 0;
 
-            } catch (Throwable t) {
-                Log.e(XposedApp.TAG, "RepoLoader -> Cannot load repository from " + url, t);
-                messages.add(mApp.getString(R.string.repo_load_failed, url,
-                        t.getMessage()));
-                messages.add("Clear app data!!");
-                DownloadsUtil.clearCache(url);
+        TimedRepoParserCallback(RepoParserCallback target) {
+            mTarget = target;
+        }
 
-            } finally {
-                if (in != null)
-                    try {
-                        in.close();
-                    } catch (IOException ignored) {
-                    }
-                cacheFile.delete();
-                RepoDb.endTransation();
-            }
+        @Override
+        public void onRepositoryMetadata(Repository repository) {
+            long start = System.nanoTime();
+            mTarget.onRepositoryMetadata(repository);
+            mNanos += System.nanoTime() - start;
         }
 
-        // TODO Set ModuleColumns.PREFERRED for modules which appear in multiple
-        // repositories
-        return hasChanged.get();
+        @Override
+        public void onNewModule(Module module) {
+            long start = System.nanoTime();
+            mTarget.onNewModule(module);
+            mNanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void onRemoveModule(String packageName) {
+            long start = System.nanoTime();
+            mTarget.onRemoveModule(packageName);
+            mNanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void onCompleted(Repository repository) {
+            long start = System.nanoTime();
+            mTarget.onCompleted(repository);
+            mNanos += System.nanoTime() - start;
+        }
+
+        long getTimeMillis() {
+            return mNanos / 1000000;
+        }
     }
 
     public void addListener(RepoListener listener, boolean triggerImmediately) {
@@ -398,15 +988,14 @@ public class RepoLoader {
     }
 
     private void notifyListeners() {
-        for (RepoListener listener : mListeners) {
-            listener.onRepoReloaded(mInstance);
-        }
+        mDispatcher.dispatch();
     }
 
     public interface RepoListener {
         /**
-         * Called whenever the list of modules from repositories has been
-         * successfully reloaded
+         * Called on the main thread whenever the list of modules from
+         * repositories has been successfully reloaded. Changes in quick
+         * succession result in a single call.
          */
         void onRepoReloaded(RepoLoader loader);
     }
@@ -0,0 +1,51 @@
+package de.ursa.android.gomxpf.installer.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Measures the time spent reading from the wrapped stream, e.g. to separate
+ * decompression from parsing.
+ */
+public class TimingInputStream extends FilterInputStream {
+    private long mReadNanos = 0;
+
+    public TimingInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        try {
+            return super.read();
+        } finally {
+            mReadNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return super.read(buffer, offset, count);
+        } finally {
+            mReadNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return super.skip(byteCount);
+        } finally {
+            mReadNanos += System.nanoTime() - start;
+        }
+    }
+
+    public long getReadTimeMillis() {
+        return mReadNanos / 1000000;
+    }
+}